@@ -0,0 +1,89 @@
+/*
+ * Copyright 2016 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.google.googlejavaformat.java;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Range;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures applying many {@link Replacement}s to a large file, both directly with
+ * {@link JavaOutput#applyReplacements} and through {@link ModifierOrderer}, which applies one
+ * replacement per out-of-order run of modifiers.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ApplyReplacementsBenchmark {
+
+  private static final int REPLACEMENTS = 10000;
+
+  private String text;
+  private ImmutableList<Replacement> replacements;
+  private ImmutableList<Replacement> reversedReplacements;
+  private JavaInput modifiers;
+  private ImmutableList<Range<Integer>> modifiersRange;
+
+  @Setup
+  public void setUp() throws FormatterException {
+    text = BenchmarkCorpus.synthetic(1000);
+    // Replace two characters with three, evenly spaced through the file, so that every
+    // replacement moves the text after it.
+    int step = text.length() / REPLACEMENTS;
+    ImmutableList.Builder<Replacement> builder = ImmutableList.builder();
+    for (int i = 0; i < REPLACEMENTS; i++) {
+      builder.add(Replacement.create(i * step, i * step + 2, "xyz"));
+    }
+    replacements = builder.build();
+    reversedReplacements = replacements.reverse();
+
+    StringBuilder sb = new StringBuilder("class Modifiers {\n");
+    for (int i = 0; i < REPLACEMENTS; i++) {
+      sb.append("  final static int f").append(i).append(" = ").append(i).append(";\n");
+    }
+    modifiers = new JavaInput("Modifiers.java", sb.append("}\n").toString());
+    modifiersRange = ImmutableList.of(Range.closedOpen(0, sb.length()));
+  }
+
+  @Benchmark
+  public String applySorted() {
+    return JavaOutput.applyReplacements(text, replacements);
+  }
+
+  @Benchmark
+  public String applyReversed() {
+    return JavaOutput.applyReplacements(text, reversedReplacements);
+  }
+
+  @Benchmark
+  public JavaInput reorderModifiers() throws FormatterException {
+    return ModifierOrderer.reorderModifiers(modifiers, modifiersRange);
+  }
+}
@@ -0,0 +1,144 @@
+/*
+ * Copyright 2016 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.google.googlejavaformat.java;
+
+import static com.google.common.io.Files.getFileExtension;
+import static com.google.common.io.Files.getNameWithoutExtension;
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import com.google.common.collect.ImmutableSortedMap;
+import com.google.common.io.CharStreams;
+import com.google.common.reflect.ClassPath;
+import com.google.common.reflect.ClassPath.ResourceInfo;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+
+/**
+ * The inputs formatted by the benchmarks: either the {@code testdata/*.input} corpus used by
+ * {@code FormatterIntegrationTest}, or a synthetic compilation unit the size of a large generated
+ * file.
+ */
+final class BenchmarkCorpus {
+
+  /** The name of the corpus made up of the integration test inputs. */
+  static final String TESTDATA = "testdata";
+
+  /** The name of the corpus made up of a single large synthetic file. */
+  static final String SYNTHETIC = "synthetic";
+
+  /** The number of members in the synthetic class; each member is about a dozen lines. */
+  private static final int SYNTHETIC_MEMBERS = 1000;
+
+  private static final Path TESTDATA_PATH = Paths.get("com/google/googlejavaformat/java/testdata");
+
+  private BenchmarkCorpus() {}
+
+  /**
+   * Loads a corpus by name.
+   *
+   * @param corpus {@link #TESTDATA} or {@link #SYNTHETIC}
+   * @return a map from file name to file contents
+   */
+  static ImmutableSortedMap<String, String> load(String corpus) throws IOException {
+    switch (corpus) {
+      case TESTDATA:
+        return loadTestdata();
+      case SYNTHETIC:
+        return ImmutableSortedMap.of("Synthetic.java", synthetic(SYNTHETIC_MEMBERS));
+      default:
+        throw new IllegalArgumentException("Unknown corpus: " + corpus);
+    }
+  }
+
+  private static ImmutableSortedMap<String, String> loadTestdata() throws IOException {
+    ClassLoader classLoader = BenchmarkCorpus.class.getClassLoader();
+    ImmutableSortedMap.Builder<String, String> inputs = ImmutableSortedMap.naturalOrder();
+    for (ResourceInfo resourceInfo : ClassPath.from(classLoader).getResources()) {
+      String resourceName = resourceInfo.getResourceName();
+      Path resourceNamePath = Paths.get(resourceName);
+      if (!resourceNamePath.startsWith(TESTDATA_PATH)) {
+        continue;
+      }
+      String fileName = resourceNamePath.getFileName().toString();
+      if (!getFileExtension(fileName).equals("input")) {
+        continue;
+      }
+      try (InputStream stream = classLoader.getResourceAsStream(resourceName)) {
+        inputs.put(
+            getNameWithoutExtension(fileName) + ".java",
+            CharStreams.toString(new InputStreamReader(stream, UTF_8)));
+      }
+    }
+    ImmutableSortedMap<String, String> result = inputs.build();
+    if (result.isEmpty()) {
+      throw new IOException("No testdata found on the classpath under " + TESTDATA_PATH);
+    }
+    return result;
+  }
+
+  /**
+   * Generates a large, badly-formatted compilation unit. The members exercise the common sources
+   * of formatter work: javadoc and line comments, long parameter lists, nested control flow, and
+   * long method chains that must be broken.
+   *
+   * @param members the number of members to generate
+   */
+  static String synthetic(int members) {
+    StringBuilder sb = new StringBuilder();
+    sb.append("package com.google.googlejavaformat.synthetic;\n\n");
+    sb.append("import java.util.ArrayList;\n");
+    sb.append("import java.util.List;\n");
+    sb.append("import java.util.Map;\n\n");
+    sb.append("/** A synthetic class with ").append(members).append(" members. */\n");
+    sb.append("public class Synthetic {\n");
+    sb.append("  static final int FIELD_COUNT = ").append(members).append(";\n\n");
+    for (int i = 0; i < members; i++) {
+      switch (i % 3) {
+        case 0:
+          sb.append("  /**\n   * Field ").append(i).append(".\n   */\n");
+          sb.append("  private static final   int FIELD_").append(i).append(" =")
+              .append(i).append(" +  FIELD_COUNT * ").append(i).append(";\n");
+          break;
+        case 1:
+          sb.append("  // Method ").append(i).append(".\n");
+          sb.append("  public static List<String> method").append(i)
+              .append("(String argument, int count, Map<String, List<Integer>> lookupTable,")
+              .append(" boolean flag) {\n");
+          sb.append("    List<String> result=new ArrayList<>();\n");
+          sb.append("    for (int j = 0; j < count; j++) { if (argument.length() > j && ")
+              .append("lookupTable.containsKey(argument) || flag) {")
+              .append(" result.add(argument.substring(j) + \"_\" + j + ")
+              .append("String.valueOf(lookupTable.get(argument).size())); } }\n");
+          sb.append("    return result;\n  }\n");
+          break;
+        default:
+          sb.append("  static final class Inner").append(i).append(" {\n");
+          sb.append("    Object build() { return new StringBuilder().append(\"first\")")
+              .append(".append(\"second\").append(").append(i)
+              .append(").append(\"third\").append(FIELD_COUNT).reverse().toString()")
+              .append(".trim().toLowerCase(); }\n");
+          sb.append("  }\n");
+          break;
+      }
+      sb.append('\n');
+    }
+    sb.append("}\n");
+    return sb.toString();
+  }
+}
@@ -0,0 +1,310 @@
+/*
+ * Copyright 2016 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.google.googlejavaformat.java;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Range;
+import com.google.common.collect.RangeSet;
+import com.google.googlejavaformat.CommentsHelper;
+import com.google.googlejavaformat.Doc;
+import com.google.googlejavaformat.FormatterDiagnostic;
+import com.google.googlejavaformat.OpsBuilder;
+import com.google.googlejavaformat.OpsBuilder.BlankLineWanted;
+import com.google.googlejavaformat.Output;
+import com.google.googlejavaformat.java.JavaFormatterOptions.JavadocFormatter;
+import com.google.googlejavaformat.java.JavaFormatterOptions.SortImports;
+import com.google.googlejavaformat.java.JavaFormatterOptions.Style;
+
+import org.eclipse.jdt.core.dom.CompilationUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmarks each phase of {@link Formatter#format} in isolation, so a regression can be attributed
+ * to lexing, parsing, visiting, op building, doc building, layout, writing, or replacement
+ * computation. Each benchmark operation runs one phase over every file in the corpus; the inputs to
+ * the phase are prepared by running the earlier phases during setup.
+ *
+ * <p>Run with {@code -prof gc} (the default when using {@link BenchmarkMain}) to see allocation
+ * rates alongside throughput.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class FormatterPhaseBenchmark {
+
+  private static final JavaFormatterOptions OPTIONS =
+      new JavaFormatterOptions(JavadocFormatter.NONE, Style.GOOGLE, SortImports.NO);
+
+  /**
+   * An {@link Output} that passes everything on to another, and records the blank lines and
+   * partial-format boundaries that the {@link OpsBuilder} asks for, so that they can be replayed
+   * into a fresh {@link JavaOutput} without visiting the file again.
+   */
+  static final class BlankLineRecorder extends Output {
+    private final Output delegate;
+    private final List<Integer> blankLineKs = new ArrayList<>();
+    private final List<BlankLineWanted> blankLinesWanted = new ArrayList<>();
+    private final List<Integer> partialFormatKs = new ArrayList<>();
+
+    BlankLineRecorder(Output delegate) {
+      this.delegate = delegate;
+    }
+
+    void replay(Output output) {
+      for (int i = 0; i < blankLineKs.size(); i++) {
+        output.blankLine(blankLineKs.get(i), blankLinesWanted.get(i));
+      }
+      for (int k : partialFormatKs) {
+        output.markForPartialFormat(k);
+      }
+    }
+
+    @Override
+    public void blankLine(int k, BlankLineWanted wanted) {
+      blankLineKs.add(k);
+      blankLinesWanted.add(wanted);
+      delegate.blankLine(k, wanted);
+    }
+
+    @Override
+    public void markForPartialFormat(int k) {
+      partialFormatKs.add(k);
+      delegate.markForPartialFormat(k);
+    }
+
+    @Override
+    public void indent(int indent) {
+      delegate.indent(indent);
+    }
+
+    @Override
+    public void append(String text, Range<Integer> range) {
+      delegate.append(text, range);
+    }
+
+    @Override
+    public CommentsHelper getCommentsHelper() {
+      return delegate.getCommentsHelper();
+    }
+  }
+
+  /**
+   * The intermediate results of formatting a single file. Each {@code run} method performs one
+   * phase of {@link Formatter#format}, using the results of the previous phases.
+   */
+  static final class PreparedFile {
+    final String fileName;
+    final String text;
+
+    JavaInput javaInput;
+    CompilationUnit unit;
+    JavaOutput javaOutput;
+    BlankLineRecorder blankLines;
+    OpsBuilder builder;
+    Doc doc;
+    RangeSet<Integer> tokenRanges;
+
+    PreparedFile(String fileName, String text) {
+      this.fileName = fileName;
+      this.text = text;
+    }
+
+    JavaInput runLex() throws FormatterException {
+      return javaInput = new JavaInput(fileName, text);
+    }
+
+    CompilationUnit runParse() {
+      unit = (CompilationUnit) Formatter.parser(javaInput.getText()).createAST(null);
+      javaInput.setCompilationUnit(unit);
+      if (unit.getMessages().length > 0) {
+        throw new IllegalStateException(fileName + ": " + unit.getMessages()[0].getMessage());
+      }
+      return unit;
+    }
+
+    OpsBuilder runVisit() {
+      List<FormatterDiagnostic> errors = new ArrayList<>();
+      javaOutput = new JavaOutput(javaInput, new JavaCommentsHelper(OPTIONS));
+      blankLines = new BlankLineRecorder(javaOutput);
+      builder = new OpsBuilder(javaInput, blankLines, errors);
+      new JavaInputAstVisitor(builder, OPTIONS.indentationMultiplier()).visit(unit);
+      builder.sync(javaInput.getText().length());
+      builder.drain();
+      if (!errors.isEmpty()) {
+        throw new IllegalStateException(fileName + ": " + errors.get(0));
+      }
+      return builder;
+    }
+
+    Doc runBuildDoc() {
+      return doc = builder.build();
+    }
+
+    Doc.State runComputeBreaks() {
+      return doc.computeBreaks(
+          javaOutput.getCommentsHelper(), OPTIONS.maxLineLength(), new Doc.State(+0, 0));
+    }
+
+    JavaOutput runWrite() {
+      doc.write(javaOutput);
+      javaOutput.flush();
+      return javaOutput;
+    }
+
+    /**
+     * Replaces the {@link JavaOutput} with an unwritten one, holding the same blank-line requests,
+     * so that {@link #runWrite} can run again. The laid-out doc is not changed by writing.
+     */
+    void resetOutput() {
+      javaOutput = new JavaOutput(javaInput, javaOutput.getCommentsHelper());
+      blankLines.replay(javaOutput);
+    }
+
+    ImmutableList<Replacement> runGetFormatReplacements() {
+      return javaOutput.getFormatReplacements(tokenRanges);
+    }
+
+    /** Runs every phase up to and including layout, leaving a fresh {@link JavaOutput}. */
+    void prepareForWrite() throws FormatterException {
+      runLex();
+      runParse();
+      runVisit();
+      runBuildDoc();
+      runComputeBreaks();
+    }
+
+    /** Runs every phase, leaving a complete {@link JavaOutput}. */
+    void prepareAll() throws FormatterException {
+      prepareForWrite();
+      runWrite();
+      tokenRanges =
+          javaInput.characterRangesToTokenRanges(
+              Collections.singleton(Range.closedOpen(0, text.length())));
+    }
+  }
+
+  @Param({BenchmarkCorpus.TESTDATA, BenchmarkCorpus.SYNTHETIC})
+  public String corpus;
+
+  private ImmutableList<PreparedFile> files;
+
+  @Setup(Level.Trial)
+  public void setUp() throws Exception {
+    ImmutableList.Builder<PreparedFile> builder = ImmutableList.builder();
+    for (Map.Entry<String, String> entry : BenchmarkCorpus.load(corpus).entrySet()) {
+      PreparedFile file = new PreparedFile(entry.getKey(), entry.getValue());
+      file.prepareAll();
+      builder.add(file);
+    }
+    files = builder.build();
+  }
+
+  /**
+   * Writing consumes the {@link JavaOutput}, so each invocation needs an unwritten one. The files
+   * are laid out once per iteration; each invocation only replaces their outputs.
+   */
+  @State(Scope.Thread)
+  public static class WriteState {
+    ImmutableList<PreparedFile> files;
+
+    @Setup(Level.Iteration)
+    public void setUp(FormatterPhaseBenchmark benchmark) throws FormatterException {
+      ImmutableList.Builder<PreparedFile> builder = ImmutableList.builder();
+      for (PreparedFile file : benchmark.files) {
+        PreparedFile fresh = new PreparedFile(file.fileName, file.text);
+        fresh.prepareForWrite();
+        builder.add(fresh);
+      }
+      files = builder.build();
+    }
+
+    @Setup(Level.Invocation)
+    public void resetOutputs() {
+      for (PreparedFile file : files) {
+        file.resetOutput();
+      }
+    }
+  }
+
+  @Benchmark
+  public void javaInput(Blackhole bh) throws FormatterException {
+    for (PreparedFile file : files) {
+      bh.consume(new JavaInput(file.fileName, file.text));
+    }
+  }
+
+  @Benchmark
+  public void parse(Blackhole bh) {
+    for (PreparedFile file : files) {
+      bh.consume(file.runParse());
+    }
+  }
+
+  @Benchmark
+  public void visit(Blackhole bh) {
+    for (PreparedFile file : files) {
+      bh.consume(file.runVisit());
+    }
+  }
+
+  @Benchmark
+  public void buildDoc(Blackhole bh) {
+    for (PreparedFile file : files) {
+      bh.consume(file.builder.build());
+    }
+  }
+
+  @Benchmark
+  public void computeBreaks(Blackhole bh) {
+    for (PreparedFile file : files) {
+      bh.consume(file.runComputeBreaks());
+    }
+  }
+
+  @Benchmark
+  public void write(WriteState state, Blackhole bh) {
+    for (PreparedFile file : state.files) {
+      bh.consume(file.runWrite());
+    }
+  }
+
+  @Benchmark
+  public void getFormatReplacements(Blackhole bh) {
+    for (PreparedFile file : files) {
+      bh.consume(file.runGetFormatReplacements());
+    }
+  }
+}
@@ -0,0 +1,112 @@
+/*
+ * Copyright 2016 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.google.googlejavaformat.java;
+
+import com.google.common.collect.ImmutableList;
+import com.google.googlejavaformat.CommentsHelper;
+import com.google.googlejavaformat.Doc;
+import com.google.googlejavaformat.Input;
+import com.google.googlejavaformat.java.FormatterPhaseBenchmark.PreparedFile;
+import com.google.googlejavaformat.java.JavaFormatterOptions.JavadocFormatter;
+import com.google.googlejavaformat.java.JavaFormatterOptions.SortImports;
+import com.google.googlejavaformat.java.JavaFormatterOptions.Style;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the allocation of {@link Doc#computeBreaks} alone. Comment rewriting necessarily
+ * allocates, so the comments are rewritten once during setup and replayed during the benchmark;
+ * what remains is the layout engine itself, which should allocate nothing per token. Run with
+ * {@code -prof gc} (the default when using {@link BenchmarkMain}) and check that
+ * {@code gc.alloc.rate.norm} stays near zero bytes per operation.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class LayoutBenchmark {
+
+  private static final int MAX_WIDTH = 100;
+
+  /** A {@link CommentsHelper} that returns comments rewritten by another one earlier. */
+  private static final class ReplayingCommentsHelper implements CommentsHelper {
+    private final CommentsHelper delegate;
+    private final Map<Input.Tok, String> rewrites = new IdentityHashMap<>();
+    private boolean recording = true;
+
+    ReplayingCommentsHelper(CommentsHelper delegate) {
+      this.delegate = delegate;
+    }
+
+    @Override
+    public String rewrite(Input.Tok tok, int maxWidth, int column0) {
+      if (recording) {
+        rewrites.put(tok, delegate.rewrite(tok, maxWidth, column0));
+      }
+      return rewrites.get(tok);
+    }
+  }
+
+  @Param({BenchmarkCorpus.TESTDATA, BenchmarkCorpus.SYNTHETIC})
+  public String corpus;
+
+  private ImmutableList<Doc> docs;
+  private ReplayingCommentsHelper commentsHelper;
+
+  @Setup
+  public void setUp() throws Exception {
+    commentsHelper =
+        new ReplayingCommentsHelper(
+            new JavaCommentsHelper(
+                new JavaFormatterOptions(JavadocFormatter.NONE, Style.GOOGLE, SortImports.NO)));
+    ImmutableList.Builder<Doc> builder = ImmutableList.builder();
+    for (Map.Entry<String, String> entry : BenchmarkCorpus.load(corpus).entrySet()) {
+      PreparedFile file = new PreparedFile(entry.getKey(), entry.getValue());
+      file.runLex();
+      file.runParse();
+      file.runVisit();
+      Doc doc = file.runBuildDoc();
+      doc.computeBreaks(commentsHelper, MAX_WIDTH, new Doc.State(+0, 0));
+      builder.add(doc);
+    }
+    docs = builder.build();
+    commentsHelper.recording = false;
+  }
+
+  /** Lays out every file; the only allocation expected is one {@link Doc.State} per file. */
+  @Benchmark
+  public void computeBreaks(Blackhole bh) {
+    for (Doc doc : docs) {
+      bh.consume(doc.computeBreaks(commentsHelper, MAX_WIDTH, new Doc.State(+0, 0)));
+    }
+  }
+}
@@ -0,0 +1,93 @@
+/*
+ * Copyright 2016 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.google.googlejavaformat.java;
+
+import org.eclipse.jdt.core.JavaCore;
+import org.eclipse.jdt.core.dom.AST;
+import org.eclipse.jdt.core.dom.ASTParser;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures how parsing scales with the number of formatting threads. Each benchmark is run on one
+ * thread and on as many threads as there are processors; if there is no contention, the per-thread
+ * throughput of the two should be about the same.
+ *
+ * <p>Every benchmark times a whole {@link ASTParser#createAST} call, so the two paths do the same
+ * work apart from parser setup: {@code parse} uses {@link Formatter#parser}, and
+ * {@code legacyParse} makes the per-file {@link JavaCore#getOptions} and
+ * {@link ASTParser#newParser} calls that {@link Formatter} used to make.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ParserScalingBenchmark {
+
+  private String source;
+
+  @Setup
+  public void setUp() {
+    source = BenchmarkCorpus.synthetic(20);
+  }
+
+  private static ASTParser legacyParser(String source) {
+    ASTParser parser = ASTParser.newParser(AST.JLS8);
+    parser.setSource(source.toCharArray());
+    @SuppressWarnings("unchecked") // safe by specification
+    Map<String, String> parserOptions = JavaCore.getOptions();
+    JavaCore.setComplianceOptions(JavaCore.VERSION_1_8, parserOptions);
+    parser.setCompilerOptions(parserOptions);
+    return parser;
+  }
+
+  @Benchmark
+  @Threads(1)
+  public Object parseOneThread() {
+    return Formatter.parser(source).createAST(null);
+  }
+
+  @Benchmark
+  @Threads(Threads.MAX)
+  public Object parseAllThreads() {
+    return Formatter.parser(source).createAST(null);
+  }
+
+  @Benchmark
+  @Threads(1)
+  public Object legacyParseOneThread() {
+    return legacyParser(source).createAST(null);
+  }
+
+  @Benchmark
+  @Threads(Threads.MAX)
+  public Object legacyParseAllThreads() {
+    return legacyParser(source).createAST(null);
+  }
+}
@@ -21,7 +21,12 @@ import com.google.common.collect.Range;
 import com.google.googlejavaformat.Output.BreakTag;
 
 import java.util.ArrayList;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
 
 /**
  * {@link com.google.googlejavaformat.java.JavaInputAstVisitor JavaInputAstVisitor} outputs a
@@ -57,12 +62,18 @@ public abstract class Doc {
     FORCED
   }
 
-  /** State for writing. */
+  /**
+   * State for writing. Computing breaks updates a single {@code State} in place as it moves through
+   * the {@code Doc}, so that laying out a document allocates nothing per token.
+   */
   public static final class State {
-    final int lastIndent;
-    final int indent;
-    final int column;
-    final boolean mustBreak;
+    int lastIndent;
+    int indent;
+    int column;
+    boolean mustBreak;
+
+    /** The size, in tokens, from which {@link Level}s are laid out in parallel; 0 for never. */
+    int parallelLayoutMinTokens;
 
     State(int lastIndent, int indent, int column, boolean mustBreak) {
       this.lastIndent = lastIndent;
@@ -75,12 +86,23 @@ public abstract class Doc {
       this(indent0, indent0, column0, false);
     }
 
-    State withColumn(int column) {
-      return new State(lastIndent, indent, column, mustBreak);
+    /**
+     * Lays out the independent parts of {@link Level}s spanning at least {@code minTokens} tokens
+     * in parallel: the groups separated by forced breaks, such as the members of a class body,
+     * which all start on a new line at the same indent. The result is the same as laying out
+     * sequentially. A {@code minTokens} of 0 disables parallel layout.
+     *
+     * @return this state
+     */
+    public State withParallelLayout(int minTokens) {
+      this.parallelLayoutMinTokens = minTokens;
+      return this;
     }
 
-    State withMustBreak(boolean mustBreak) {
-      return new State(lastIndent, indent, column, mustBreak);
+    State copy() {
+      State copy = new State(lastIndent, indent, column, mustBreak);
+      copy.parallelLayoutMinTokens = parallelLayoutMinTokens;
+      return copy;
     }
 
     @Override
@@ -134,6 +156,15 @@ public abstract class Doc {
     return flat;
   }
 
+  /**
+   * Append a {@code Doc}'s flat-string value to {@code builder}; not defined (and never called) if
+   * the {@code Doc} contains forced breaks.
+   * @param builder the {@link StringBuilder} to append to
+   */
+  void appendFlat(StringBuilder builder) {
+    builder.append(getFlat());
+  }
+
   /**
    * Return the {@link Range} of a {@code Doc}.
    * @return the {@code Doc}'s {@link Range}
@@ -167,8 +198,8 @@ public abstract class Doc {
   /**
    * Make breaking decisions for a {@code Doc}.
    * @param maxWidth the maximum line width
-   * @param state the current output state
-   * @return the new output state
+   * @param state the current output state, which is updated in place
+   * @return the new output state, which is {@code state}
    */
   public abstract State computeBreaks(CommentsHelper commentsHelper, int maxWidth, State state);
 
@@ -178,6 +209,12 @@ public abstract class Doc {
    */
   public abstract void write(Output output);
 
+  /**
+   * Adds the {@link BreakTag}s that laying out the {@code Doc} records or depends on to
+   * {@code tags}.
+   */
+  void addBreakTags(Set<BreakTag> tags) {}
+
   /** A {@code Level} inside a {@link Doc}. */
   static final class Level extends Doc {
     private final Indent plusIndent; // The extra indent following breaks.
@@ -216,10 +253,16 @@ public abstract class Doc {
     @Override
     String computeFlat() {
       StringBuilder builder = new StringBuilder();
+      appendFlat(builder);
+      return builder.toString();
+    }
+
+    // Nested Levels append their children directly, so their flat values are never materialized.
+    @Override
+    void appendFlat(StringBuilder builder) {
       for (Doc doc : docs) {
-        builder.append(doc.getFlat());
+        doc.appendFlat(builder);
       }
-      return builder.toString();
     }
 
     @Override
@@ -231,6 +274,14 @@ public abstract class Doc {
       return docRange;
     }
 
+    @Override
+    void addBreakTags(Set<BreakTag> tags) {
+      plusIndent.addConditions(tags);
+      for (Doc doc : docs) {
+        doc.addBreakTags(tags);
+      }
+    }
+
     // State that needs to be preserved between calculating breaks and
     // writing output.
     // TODO(cushon): represent phases as separate immutable data.
@@ -240,7 +291,7 @@ public abstract class Doc {
 
     /**
      * Groups of {@link Doc}s that are children of the current {@link Level},
-     * separated by {@link Break}s.
+     * separated by {@link Break}s. Computed the first time the {@link Level} is broken.
      */
     List<List<Doc>> splits = new ArrayList<>();
 
@@ -252,17 +303,25 @@ public abstract class Doc {
       float thisWidth = getWidth();
       if (state.column + thisWidth <= maxWidth) {
         oneLine = true;
-        return state.withColumn(state.column + (int) thisWidth);
+        state.column += (int) thisWidth;
+        return state;
       }
-      State broken =
-          computeBroken(
-              commentsHelper, maxWidth, new State(state.indent + plusIndent.eval(), state.column));
-      return state.withColumn(broken.column);
+      oneLine = false;
+      // Break the level in a nested state starting at the current column, then restore
+      // everything but the column.
+      int lastIndent = state.lastIndent;
+      int indent = state.indent;
+      boolean mustBreak = state.mustBreak;
+      state.lastIndent = state.indent = indent + plusIndent.eval();
+      state.mustBreak = false;
+      computeBroken(commentsHelper, maxWidth, state);
+      state.lastIndent = lastIndent;
+      state.indent = indent;
+      state.mustBreak = mustBreak;
+      return state;
     }
 
     private static void splitByBreaks(List<Doc> docs, List<List<Doc>> splits, List<Break> breaks) {
-      splits.clear();
-      breaks.clear();
       splits.add(new ArrayList<Doc>());
       for (Doc doc : docs) {
         if (doc instanceof Break) {
@@ -277,61 +336,126 @@ public abstract class Doc {
     /**
      * Compute breaks for a {@link Level} that spans multiple lines.
      */
-    private State computeBroken(CommentsHelper commentsHelper, int maxWidth, State state) {
-      splitByBreaks(docs, splits, breaks);
+    private void computeBroken(CommentsHelper commentsHelper, int maxWidth, State state) {
+      if (splits.isEmpty()) {
+        splitByBreaks(docs, splits, breaks);
+      }
+      if (state.parallelLayoutMinTokens > 0
+          && range().upperEndpoint() - range().lowerEndpoint() >= state.parallelLayoutMinTokens
+          && computeBrokenInParallel(commentsHelper, maxWidth, state)) {
+        return;
+      }
+      computeBroken(commentsHelper, maxWidth, state, -1, breaks.size());
+    }
 
-      state =
-          computeBreakAndSplit(
-              commentsHelper, maxWidth, state, Optional.<Break>absent(), splits.get(0));
+    /**
+     * Compute breaks for the splits following {@code breaks[from]} to {@code breaks[to - 1]}, and
+     * their breaks; a {@code from} of -1 starts with the first split.
+     */
+    private void computeBroken(
+        CommentsHelper commentsHelper, int maxWidth, State state, int from, int to) {
+      for (int i = from; i < to; i++) {
+        computeBreakAndSplit(
+            commentsHelper, maxWidth, state, i < 0 ? null : breaks.get(i), splits.get(i + 1));
+      }
+    }
 
-      // Handle following breaks and split.
-      for (int i = 0; i < breaks.size(); i++) {
-        state =
-            computeBreakAndSplit(
-                commentsHelper, maxWidth, state, Optional.of(breaks.get(i)), splits.get(i + 1));
+    /**
+     * Compute breaks for the groups of splits separated by forced breaks in parallel, if there are
+     * several and they are independent. A forced break is always taken, and resets the column to
+     * the {@link Level}'s indent, so the layout after it does not depend on what came before,
+     * unless a {@link BreakTag} recorded before it is read after it. Neighbouring groups are laid
+     * out together, in a few tasks per thread.
+     *
+     * @return whether the breaks were computed
+     */
+    private boolean computeBrokenInParallel(
+        CommentsHelper commentsHelper, int maxWidth, State state) {
+      int taskMinTokens =
+          (range().upperEndpoint() - range().lowerEndpoint())
+              / (4 * LayoutPool.POOL.getParallelism());
+      List<LayoutGroup> groups = new ArrayList<>();
+      Set<BreakTag> seen = new HashSet<>();
+      Set<BreakTag> groupTags = new HashSet<>();
+      Range<Integer> groupRange = EMPTY_RANGE;
+      int from = -1;
+      for (int i = -1; i < breaks.size(); i++) {
+        if (i >= 0) {
+          breaks.get(i).addBreakTags(groupTags);
+        }
+        for (Doc doc : splits.get(i + 1)) {
+          doc.addBreakTags(groupTags);
+          groupRange = union(groupRange, doc.range());
+        }
+        int to = i + 1;
+        if (to < breaks.size()
+            && (!breaks.get(to).isForced()
+                || groupRange.upperEndpoint() - groupRange.lowerEndpoint() < taskMinTokens)) {
+          continue;
+        }
+        for (BreakTag tag : groupTags) {
+          if (!seen.add(tag)) {
+            return false;
+          }
+        }
+        groups.add(new LayoutGroup(this, commentsHelper, maxWidth, state.copy(), from, to));
+        groupTags.clear();
+        groupRange = EMPTY_RANGE;
+        from = to;
       }
-      return state;
+      if (groups.size() < 2) {
+        return false;
+      }
+      if (ForkJoinTask.inForkJoinPool()) {
+        ForkJoinTask.invokeAll(groups);
+      } else {
+        LayoutPool.POOL.invoke(new LayoutGroups(groups));
+      }
+      State last = groups.get(groups.size() - 1).state;
+      state.column = last.column;
+      state.mustBreak = last.mustBreak;
+      return true;
     }
 
     /**
      * Lay out a Break-separated group of Docs in the current Level.
+     * @param breakDoc the {@link Break} before the group, or {@code null} for the first group
      */
-    private static State computeBreakAndSplit(
-        CommentsHelper commentsHelper,
-        int maxWidth,
-        State state,
-        Optional<Break> optBreakDoc,
-        List<Doc> split) {
-      float breakWidth = optBreakDoc.isPresent() ? optBreakDoc.get().getWidth() : 0.0F;
+    private static void computeBreakAndSplit(
+        CommentsHelper commentsHelper, int maxWidth, State state, Break breakDoc, List<Doc> split) {
+      float breakWidth = breakDoc != null ? breakDoc.getWidth() : 0.0F;
       float splitWidth = getWidth(split);
       boolean shouldBreak =
-          (optBreakDoc.isPresent() && optBreakDoc.get().fillMode == FillMode.UNIFIED)
+          (breakDoc != null && breakDoc.fillMode == FillMode.UNIFIED)
               || state.mustBreak
               || state.column + breakWidth + splitWidth > maxWidth;
 
-      if (optBreakDoc.isPresent()) {
-        state = optBreakDoc.get().computeBreaks(state, state.lastIndent, shouldBreak);
+      if (breakDoc != null) {
+        breakDoc.computeBreaks(state, state.lastIndent, shouldBreak);
       }
       boolean enoughRoom = state.column + splitWidth <= maxWidth;
-      state = computeSplit(commentsHelper, maxWidth, split, state.withMustBreak(false));
+      state.mustBreak = false;
+      computeSplit(commentsHelper, maxWidth, split, state);
       if (!enoughRoom) {
-        state = state.withMustBreak(true); // Break after, too.
+        state.mustBreak = true; // Break after, too.
       }
-      return state;
     }
 
-    private static State computeSplit(
+    private static void computeSplit(
         CommentsHelper commentsHelper, int maxWidth, List<Doc> docs, State state) {
-      for (Doc doc : docs) {
-        state = doc.computeBreaks(commentsHelper, maxWidth, state);
+      for (int i = 0; i < docs.size(); i++) {
+        docs.get(i).computeBreaks(commentsHelper, maxWidth, state);
       }
-      return state;
     }
 
     @Override
     public void write(Output output) {
       if (oneLine) {
-        output.append(getFlat(), range()); // This is defined because width is finite.
+        // The flat value is defined because width is finite. It is built once, for the outermost
+        // one-line Level, and not memoized.
+        StringBuilder builder = new StringBuilder((int) getWidth());
+        appendFlat(builder);
+        output.append(builder.toString(), range());
       } else {
         writeFilled(output);
       }
@@ -358,8 +482,8 @@ public abstract class Doc {
      */
     static float getWidth(List<Doc> docs) {
       float width = 0.0F;
-      for (Doc doc : docs) {
-        width += doc.getWidth();
+      for (int i = 0; i < docs.size(); i++) {
+        width += docs.get(i).getWidth();
       }
       return width;
     }
@@ -377,6 +501,50 @@ public abstract class Doc {
     }
   }
 
+  /** Computes breaks for one group of splits of a {@link Level}, on its own copy of the state. */
+  private static final class LayoutGroup extends RecursiveAction {
+    private final Level level;
+    private final CommentsHelper commentsHelper;
+    private final int maxWidth;
+    final State state;
+    private final int from;
+    private final int to;
+
+    LayoutGroup(
+        Level level, CommentsHelper commentsHelper, int maxWidth, State state, int from, int to) {
+      this.level = level;
+      this.commentsHelper = commentsHelper;
+      this.maxWidth = maxWidth;
+      this.state = state;
+      this.from = from;
+      this.to = to;
+    }
+
+    @Override
+    protected void compute() {
+      level.computeBroken(commentsHelper, maxWidth, state, from, to);
+    }
+  }
+
+  /** Runs {@link LayoutGroup}s from outside a fork/join pool. */
+  private static final class LayoutGroups extends RecursiveAction {
+    private final List<LayoutGroup> groups;
+
+    LayoutGroups(List<LayoutGroup> groups) {
+      this.groups = groups;
+    }
+
+    @Override
+    protected void compute() {
+      invokeAll(groups);
+    }
+  }
+
+  /** Holds the pool for parallel layout, so that it is only created if it is used. */
+  private static final class LayoutPool {
+    static final ForkJoinPool POOL = new ForkJoinPool();
+  }
+
   /** A leaf {@link Doc} for a token. */
   public static final class Token extends Doc implements Op {
     /**
@@ -462,7 +630,7 @@ public abstract class Doc {
 
     @Override
     float computeWidth() {
-      return token.getTok().getOriginalText().length();
+      return token.getTok().length();
     }
 
     @Override
@@ -477,8 +645,8 @@ public abstract class Doc {
 
     @Override
     public State computeBreaks(CommentsHelper commentsHelper, int maxWidth, State state) {
-      String text = token.getTok().getOriginalText();
-      return state.withColumn(state.column + text.length());
+      state.column += (int) getWidth(); // The width is the length of the token's text.
+      return state;
     }
 
     @Override
@@ -533,7 +701,8 @@ public abstract class Doc {
 
     @Override
     public State computeBreaks(CommentsHelper commentsHelper, int maxWidth, State state) {
-      return state.withColumn(state.column + 1);
+      state.column += 1;
+      return state;
     }
 
     @Override
@@ -629,6 +798,14 @@ public abstract class Doc {
       return EMPTY_RANGE;
     }
 
+    @Override
+    void addBreakTags(Set<BreakTag> tags) {
+      if (optTag.isPresent()) {
+        tags.add(optTag.get());
+      }
+      plusIndent.addConditions(tags);
+    }
+
     /** Was this break taken? */
     boolean broken;
 
@@ -643,12 +820,13 @@ public abstract class Doc {
       if (broken) {
         this.broken = true;
         this.newIndent = Math.max(lastIndent + plusIndent.eval(), 0);
-        return state.withColumn(newIndent);
+        state.column = newIndent;
       } else {
         this.broken = false;
         this.newIndent = -1;
-        return state.withColumn(state.column + flat.length());
+        state.column += flat.length();
       }
+      return state;
     }
 
     @Override
@@ -711,12 +889,11 @@ public abstract class Doc {
         if (idx > 0) {
           return idx;
         } else {
-          return tok.getOriginalText().length();
+          return tok.length();
         }
       }
-      return tok.getOriginalText().contains("\n")
-          ? Float.POSITIVE_INFINITY
-          : (float) tok.getOriginalText().length();
+      // Apart from comments, only newlines contain a newline.
+      return tok.isNewline() ? Float.POSITIVE_INFINITY : (float) tok.length();
     }
 
     @Override
@@ -733,19 +910,11 @@ public abstract class Doc {
 
     @Override
     public State computeBreaks(CommentsHelper commentsHelper, int maxWidth, State state) {
-      int column = state.column;
-      int lines = 0;
-      text = commentsHelper.rewrite(tok, maxWidth, column);
-      // TODO(lowasser): use lastIndexOf('\n')
-      for (char c : text.toCharArray()) {
-        if (c == '\n') {
-          column = 0;
-          lines++;
-        } else {
-          column++;
-        }
-      }
-      return state.withColumn(column);
+      text = commentsHelper.rewrite(tok, maxWidth, state.column);
+      int lastNewline = text.lastIndexOf('\n');
+      state.column =
+          lastNewline < 0 ? state.column + text.length() : text.length() - lastNewline - 1;
+      return state;
     }
 
     @Override
@@ -17,6 +17,8 @@ package com.google.googlejavaformat;
 import com.google.common.base.MoreObjects;
 import com.google.googlejavaformat.Output.BreakTag;
 
+import java.util.Set;
+
 /**
  * An indent for a {@link Doc.Level} or {@link Doc.Break}. The indent is either a constant
  * {@code int}, or a conditional expression whose value depends on whether or not a
@@ -26,6 +28,9 @@ public abstract class Indent {
 
   abstract int eval();
 
+  /** Adds the {@link BreakTag}s the indent depends on to {@code conditions}. */
+  abstract void addConditions(Set<BreakTag> conditions);
+
   /** A constant function, returning a constant indent. */
   public static final class Const extends Indent {
     private final int n;
@@ -45,6 +50,9 @@ public abstract class Indent {
       return n;
     }
 
+    @Override
+    void addConditions(Set<BreakTag> conditions) {}
+
     @Override
     public String toString() {
       return MoreObjects.toStringHelper(this).add("n", n).toString();
@@ -72,6 +80,13 @@ public abstract class Indent {
       return (condition.wasBreakTaken() ? thenIndent : elseIndent).eval();
     }
 
+    @Override
+    void addConditions(Set<BreakTag> conditions) {
+      conditions.add(condition);
+      thenIndent.addConditions(conditions);
+      elseIndent.addConditions(conditions);
+    }
+
     @Override
     public String toString() {
       return MoreObjects.toStringHelper(this)
@@ -16,9 +16,6 @@ package com.google.googlejavaformat;
 
 import com.google.common.base.MoreObjects;
 import com.google.common.collect.ImmutableList;
-import com.google.common.collect.ImmutableMap;
-
-import java.util.NavigableMap;
 
 /**
  * An input to the formatter.
@@ -60,6 +57,12 @@ public abstract class Input extends InputOutput {
      */
     String getOriginalText();
 
+    /**
+     * Return the length of the {@code Tok}'s original text, without copying the text.
+     * @return its original length
+     */
+    int length();
+
     /** Is the {@code Tok} a newline? */
     boolean isNewline();
 
@@ -106,13 +109,35 @@ public abstract class Input extends InputOutput {
   public abstract ImmutableList<? extends Token> getTokens();
 
   /**
-   * Get the navigable map from position to {@link Token}. Used to look for tokens following a given
-   * one.
-   * @return the navigable map from position to {@link Token}
+   * Get the last {@link Token} starting at or before a position, counting its leading whitespace
+   * and comments as part of it.
+   * @param position the {@code 0}-based position
+   * @return the {@link Token}, or {@code null} if there is none
+   */
+  public abstract Token floorToken(int position);
+
+  /**
+   * Get the last {@link Token} starting strictly before a position, counting its leading
+   * whitespace and comments as part of it.
+   * @param position the {@code 0}-based position
+   * @return the {@link Token}, or {@code null} if there is none
+   */
+  public abstract Token lowerToken(int position);
+
+  /**
+   * Get the first {@link Token} starting at or after a position, counting its leading whitespace
+   * and comments as part of it. Used to look for tokens following a given one.
+   * @param position the {@code 0}-based position
+   * @return the {@link Token}, or {@code null} if there is none
    */
-  public abstract NavigableMap<Integer, ? extends Token> getPositionTokenMap();
+  public abstract Token ceilingToken(int position);
 
-  public abstract ImmutableMap<Integer, Integer> getPositionToColumnMap();
+  /**
+   * Get the column of the {@link Tok} starting at a position.
+   * @param position the {@code 0}-based position
+   * @return the {@code 0}-based column, or {@code -1} if no {@link Tok} starts at the position
+   */
+  public abstract int getTokColumn(int position);
 
   public abstract String getText();
 
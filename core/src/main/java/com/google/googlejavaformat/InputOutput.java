@@ -15,27 +15,23 @@
 package com.google.googlejavaformat;
 
 import com.google.common.base.CharMatcher;
-import com.google.common.collect.DiscreteDomain;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.Range;
 
-import java.util.ArrayList;
-import java.util.HashMap;
+import java.util.Arrays;
 import java.util.List;
-import java.util.Map;
 
 /** This interface defines methods common to an {@link Input} or an {@link Output}. */
 public abstract class InputOutput {
-  private ImmutableList<String> lines = ImmutableList.of();
+  private List<String> lines = ImmutableList.of();
 
   protected static final Range<Integer> EMPTY_RANGE = Range.closedOpen(-1, -1);
   private static final CharMatcher NEWLINE_MATCHER = CharMatcher.is('\n');
-  private static final DiscreteDomain<Integer> INTEGERS = DiscreteDomain.integers();
 
   /**
    * Set the lines.
    */
-  protected final void setLines(ImmutableList<String> lines) {
+  protected final void setLines(List<String> lines) {
     this.lines = lines;
   }
 
@@ -56,61 +52,164 @@ public abstract class InputOutput {
     return lines.get(lineI);
   }
 
-  /** The {@link Range}s of the tokens or comments beginning on each line. */
-  protected final List<Range<Integer>> range0s = new ArrayList<>();
+  /**
+   * The {@link Range}s of tok indices on each line, packed into arrays of lower and upper
+   * endpoints. Lines with no toks have the empty range {@code [-1, -1)}.
+   */
+  protected static final class LineRanges {
+    private int[] lo = new int[16];
+    private int[] hi = new int[16];
+    private int size = 0;
 
-  /** The {@link Range}s of the tokens or comments lying on each line, in any part. */
-  protected final List<Range<Integer>> ranges = new ArrayList<>();
+    /** The number of lines with recorded ranges. */
+    public int size() {
+      return size;
+    }
 
-  /** The {@link Range}s of the tokens or comments ending on each line. */
-  protected final List<Range<Integer>> range1s = new ArrayList<>();
+    /** The inclusive lower endpoint of the range for a line, or {@code -1} if it is empty. */
+    public int lowerEndpoint(int lineI) {
+      return 0 <= lineI && lineI < size ? lo[lineI] : -1;
+    }
+
+    /** The exclusive upper endpoint of the range for a line, or {@code -1} if it is empty. */
+    public int upperEndpoint(int lineI) {
+      return 0 <= lineI && lineI < size ? hi[lineI] : -1;
+    }
+
+    /** Whether the range for a line is empty. */
+    public boolean isEmpty(int lineI) {
+      return lowerEndpoint(lineI) == upperEndpoint(lineI);
+    }
+
+    /** The range for a line, as a {@link Range}. */
+    public Range<Integer> get(int lineI) {
+      return isEmpty(lineI)
+          ? EMPTY_RANGE
+          : Range.closedOpen(lowerEndpoint(lineI), upperEndpoint(lineI));
+    }
+
+    /** Adds empty ranges until there are ranges for {@code n} lines. */
+    public void padTo(int n) {
+      if (n > lo.length) {
+        int capacity = Math.max(n, lo.length + (lo.length >> 1));
+        lo = Arrays.copyOf(lo, capacity);
+        hi = Arrays.copyOf(hi, capacity);
+      }
+      while (size < n) {
+        lo[size] = -1;
+        hi[size] = -1;
+        size++;
+      }
+    }
+
+    /** Widens the range for a line to span {@code [k0, k1)}. */
+    public void add(int lineI, int k0, int k1) {
+      padTo(lineI + 1);
+      if (lo[lineI] == hi[lineI]) {
+        lo[lineI] = k0;
+        hi[lineI] = k1;
+      } else {
+        lo[lineI] = Math.min(lo[lineI], k0);
+        hi[lineI] = Math.max(hi[lineI], k1);
+      }
+    }
+
+    /** Adds the range {@code [k0, k1)} for a new line after the last one. */
+    public void append(int k0, int k1) {
+      add(size, k0, k1);
+    }
 
-  private static void addToRanges(List<Range<Integer>> ranges, int i, int k) {
-    while (ranges.size() <= i) {
-      ranges.add(EMPTY_RANGE);
+    @Override
+    public String toString() {
+      StringBuilder builder = new StringBuilder("[");
+      for (int i = 0; i < size; i++) {
+        builder.append(i > 0 ? ", " : "").append(get(i));
+      }
+      return builder.append(']').toString();
     }
-    Range<Integer> oldValue = ranges.get(i);
-    ranges.set(i, Range.closedOpen(oldValue.isEmpty() ? k : oldValue.lowerEndpoint(), k + 1));
   }
 
+  /** The {@link Range}s of the tokens or comments beginning on each line. */
+  protected final LineRanges range0s = new LineRanges();
+
+  /** The {@link Range}s of the tokens or comments lying on each line, in any part. */
+  protected final LineRanges ranges = new LineRanges();
+
+  /** The {@link Range}s of the tokens or comments ending on each line. */
+  protected final LineRanges range1s = new LineRanges();
+
   protected final void computeRanges(List<? extends Input.Tok> toks) {
     int lineI = 0;
     for (Input.Tok tok : toks) {
-      String txt = tok.getOriginalText();
       int lineI0 = lineI;
-      lineI += NEWLINE_MATCHER.countIn(txt);
+      // Only newlines and comments contain newlines, so other toks' text need not be copied out.
+      if (tok.isNewline()) {
+        lineI++;
+      } else if (tok.isComment()) {
+        lineI += NEWLINE_MATCHER.countIn(tok.getOriginalText());
+      }
       int k = tok.getIndex();
       if (k >= 0) {
-        addToRanges(range0s, lineI0, k);
+        range0s.add(lineI0, k, k + 1);
         for (int i = lineI0; i <= lineI; i++) {
-          addToRanges(ranges, i, k);
+          ranges.add(i, k, k + 1);
         }
-        addToRanges(range1s, lineI0, k);
+        range1s.add(lineI0, k, k + 1);
       }
     }
   }
 
   /**
-   * Given an {@code InputOutput}, compute the map from tok indices to line ranges.
+   * The lines on which each tok lies, indexed densely by tok index. The lines of tok {@code k} are
+   * {@code [lowerEndpoint(k), upperEndpoint(k))}.
+   */
+  public static final class KToIJ {
+    private final int[] lo;
+    private final int[] hi;
+
+    private KToIJ(int[] lo, int[] hi) {
+      this.lo = lo;
+      this.hi = hi;
+    }
+
+    /** The first line on which tok {@code k} lies. */
+    public int lowerEndpoint(int k) {
+      return lo[k];
+    }
+
+    /** One past the last line on which tok {@code k} lies. */
+    public int upperEndpoint(int k) {
+      return hi[k];
+    }
+  }
+
+  /**
+   * Given an {@code InputOutput}, compute the index from tok indices to line ranges.
    * @param put the {@code InputOutput}
    * @param kN the number of tokens
-   * @return the map from {@link com.google.googlejavaformat.java.JavaInput.Tok} indices to line
+   * @return the index from {@link com.google.googlejavaformat.java.JavaInput.Tok} indices to line
    *     ranges in this {@code put}
    */
-  public static Map<Integer, Range<Integer>> makeKToIJ(InputOutput put, int kN) {
-    Map<Integer, Range<Integer>> map = new HashMap<>();
-    int ijN = put.getLineCount();
-    for (int ij = 0; ij <= ijN; ij++) {
-      Range<Integer> range = put.getRanges(ij).canonical(INTEGERS);
-      for (int k = range.lowerEndpoint(); k < range.upperEndpoint(); k++) {
-        if (map.containsKey(k)) {
-          map.put(k, Range.closedOpen(map.get(k).lowerEndpoint(), ij + 1));
-        } else {
-          map.put(k, Range.closedOpen(ij, ij + 1));
+  public static KToIJ makeKToIJ(InputOutput put, int kN) {
+    LineRanges ranges = put.ranges;
+    int ijN = ranges.size();
+    // The toks are numbered densely, so the toks on the lines are [0, size).
+    int size = kN + 1;
+    for (int ij = 0; ij < ijN; ij++) {
+      size = Math.max(size, ranges.upperEndpoint(ij));
+    }
+    int[] lo = new int[size];
+    int[] hi = new int[size];
+    Arrays.fill(lo, -1);
+    for (int ij = 0; ij < ijN; ij++) {
+      for (int k = Math.max(0, ranges.lowerEndpoint(ij)); k < ranges.upperEndpoint(ij); k++) {
+        if (lo[k] < 0) {
+          lo[k] = ij;
         }
+        hi[k] = ij + 1;
       }
     }
-    return map;
+    return new KToIJ(lo, hi);
   }
 
   /**
@@ -119,7 +218,7 @@ public abstract class InputOutput {
    * @return the {@link Range} of {@link Input.Tok}s beginning on the specified line
    */
   public final Range<Integer> getRange0s(int lineI) {
-    return 0 <= lineI && lineI < range0s.size() ? range0s.get(lineI) : EMPTY_RANGE;
+    return range0s.get(lineI);
   }
 
   /**
@@ -128,7 +227,7 @@ public abstract class InputOutput {
    * @return the {@link Range} of {@link Input.Tok}s on the specified line
    */
   public final Range<Integer> getRanges(int lineI) {
-    return 0 <= lineI && lineI < ranges.size() ? ranges.get(lineI) : EMPTY_RANGE;
+    return ranges.get(lineI);
   }
 
   /**
@@ -137,7 +236,34 @@ public abstract class InputOutput {
    * @return the {@link Range} of {@link Input.Tok}s ending on the specified line
    */
   public final Range<Integer> getRange1s(int lineI) {
-    return 0 <= lineI && lineI < range1s.size() ? range1s.get(lineI) : EMPTY_RANGE;
+    return range1s.get(lineI);
+  }
+
+  /**
+   * Get the first index of the {@link Input.Tok}s beginning on a line, without boxing.
+   * @param lineI the line number
+   * @return the lower endpoint of {@link #getRange0s}, or {@code -1} if it is empty
+   */
+  public final int getRange0sLowerEndpoint(int lineI) {
+    return range0s.lowerEndpoint(lineI);
+  }
+
+  /**
+   * Get the first index of the {@link Input.Tok}s lying in any part on a line, without boxing.
+   * @param lineI the line number
+   * @return the lower endpoint of {@link #getRanges}, or {@code -1} if it is empty
+   */
+  public final int getRangesLowerEndpoint(int lineI) {
+    return ranges.lowerEndpoint(lineI);
+  }
+
+  /**
+   * Get one past the last index of the {@link Input.Tok}s ending on a line, without boxing.
+   * @param lineI the line number
+   * @return the upper endpoint of {@link #getRange1s}, or {@code -1} if it is empty
+   */
+  public final int getRange1sUpperEndpoint(int lineI) {
+    return range1s.upperEndpoint(lineI);
   }
 
   @Override
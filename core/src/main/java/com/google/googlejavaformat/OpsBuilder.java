@@ -16,10 +16,8 @@ package com.google.googlejavaformat;
 
 import com.google.common.base.MoreObjects;
 import com.google.common.base.Optional;
-import com.google.common.collect.ArrayListMultimap;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.Iterables;
-import com.google.common.collect.Multimap;
 import com.google.googlejavaformat.Indent.Const;
 import com.google.googlejavaformat.Input.Tok;
 import com.google.googlejavaformat.Input.Token;
@@ -30,32 +28,32 @@ import java.util.List;
 
 /**
  * An {@code OpsBuilder} creates a list of {@link Op}s, which is turned into a {@link Doc} by
- * {@link DocBuilder}.
+ * {@link DocBuilder} once the comments have been spliced in.
  */
 public final class OpsBuilder {
 
   /** @return the actual size of the AST node at position, including comments. */
   public int actualSize(int position, int length) {
-    Token startToken = input.getPositionTokenMap().floorEntry(position).getValue();
+    Token startToken = input.floorToken(position);
     int start = startToken.getTok().getPosition();
     for (Tok tok : startToken.getToksBefore()) {
       if (tok.isComment()) {
         start = Math.min(start, tok.getPosition());
       }
     }
-    Token endToken = input.getPositionTokenMap().lowerEntry(position + length).getValue();
-    int end = endToken.getTok().getPosition() + endToken.getTok().getText().length();
+    Token endToken = input.lowerToken(position + length);
+    int end = endToken.getTok().getPosition() + endToken.getTok().length();
     for (Tok tok : endToken.getToksAfter()) {
       if (tok.isComment()) {
-        end = Math.max(end, tok.getPosition() + tok.getText().length());
+        end = Math.max(end, tok.getPosition() + tok.length());
       }
     }
     return end - start;
   }
 
   /** @return the start column of the token at {@code position}, including leading comments. */
-  public Integer actualStartColumn(int position) {
-    Token startToken = input.getPositionTokenMap().floorEntry(position).getValue();
+  public int actualStartColumn(int position) {
+    Token startToken = input.floorToken(position);
     int start = startToken.getTok().getPosition();
     int line0 = input.getLineNumber(start);
     for (Tok tok : startToken.getToksBefore()) {
@@ -386,151 +384,167 @@ public final class OpsBuilder {
   private static final Doc.Space SPACE = Doc.Space.make();
 
   /**
-   * Build a list of {@link Op}s from the {@code OpsBuilder}.
-   * @return the list of {@link Op}s
+   * Build the {@link Doc} for the {@code OpsBuilder}, splicing in the comments and other non-tokens
+   * around each {@link Doc.Token} while the {@link Op}s are fed to a {@link DocBuilder}, in a
+   * single pass over the {@link Op}s.
+   * @return the {@link Doc}
    */
-  public final ImmutableList<Op> build() {
-    // Rewrite the ops to insert comments.
-    Multimap<Integer, Op> tokOps = ArrayListMultimap.create();
+  public final Doc build() {
+    Splicer splicer = new Splicer();
+    Doc.Token pendingToksAfter = null; // The token whose toksAfter are yet to be inserted.
     int opsN = ops.size();
     for (int i = 0; i < opsN; i++) {
       Op op = ops.get(i);
-      if (op instanceof Doc.Token) {
+      if (pendingToksAfter != null && !(op instanceof CloseOp)) {
+        insertToksAfter(splicer, pendingToksAfter);
+        pendingToksAfter = null;
+      }
+      if (i == 0 || !(ops.get(i - 1) instanceof OpenOp)) {
         /*
          * Token ops can have associated non-tokens, including comments, which we need to insert.
          * They can also cause line breaks, so we insert them before or after the current level,
-         * when possible.
+         * when possible: a token's toksBefore go before the OpenOps that precede it, and its
+         * toksAfter after the CloseOps that follow it.
          */
-        Doc.Token tokenOp = (Doc.Token) op;
-        Input.Token token = tokenOp.getToken();
-        int j = i; // Where to insert toksBefore before.
-        while (0 < j && ops.get(j - 1) instanceof OpenOp) {
-          --j;
+        int j = i;
+        while (j < opsN && ops.get(j) instanceof OpenOp) {
+          ++j;
         }
-        int k = i; // Where to insert toksAfter after.
-        while (k + 1 < opsN && ops.get(k + 1) instanceof CloseOp) {
-          ++k;
+        if (j < opsN && ops.get(j) instanceof Doc.Token) {
+          insertToksBefore(splicer, (Doc.Token) ops.get(j));
         }
-        if (tokenOp.realOrImaginary().isReal()) {
-          /*
-           * Regular input token. Copy out toksBefore before token, and toksAfter after it. Insert
-           * this token's toksBefore at position j.
-           */
-          int newlines = 0; // Count of newlines in a row.
-          boolean space = false; // Do we need an extra space after a previous "/*" comment?
-          boolean lastWasComment = false; // Was the last thing we output a comment?
-          boolean allowBlankAfterLastComment = false;
-          boolean lastWasJavadoc = false;
-          for (Input.Tok tokBefore : token.getToksBefore()) {
-            if (tokBefore.isNewline()) {
-              newlines++;
-            } else if (tokBefore.isComment()) {
-              tokOps.put(
-                  j,
-                  Doc.Break.make(
-                      tokBefore.isSlashSlashComment() ? Doc.FillMode.FORCED : Doc.FillMode.UNIFIED,
-                      "",
-                      tokenOp.getPlusIndentCommentsBefore()));
-              tokOps.putAll(j, makeComment(tokBefore));
-              space = tokBefore.isSlashStarComment();
-              newlines = 0;
-              lastWasComment = true;
-              lastWasJavadoc = tokBefore.isJavadocComment();
-              allowBlankAfterLastComment =
-                  tokBefore.isSlashSlashComment()
-                      || (tokBefore.isSlashStarComment() && !tokBefore.isJavadocComment());
-            }
-          }
-          if (allowBlankAfterLastComment && newlines > 1) {
-            // Force a line break after two newlines in a row following a line or block comment
-            output.blankLine(token.getTok().getIndex(), BlankLineWanted.YES);
-          }
-          if (lastWasJavadoc || (lastWasComment && newlines > 0)) {
-            tokOps.put(j, Doc.Break.makeForced());
-          } else if (space) {
-            tokOps.put(j, SPACE);
-          }
-          // Now we've seen the Token; output the toksAfter.
-          for (Input.Tok tokAfter : token.getToksAfter()) {
-            if (tokAfter.isComment()) {
-              boolean breakAfter =
-                  tokAfter.isJavadocComment()
-                      || (tokAfter.isSlashStarComment()
-                          && tokenOp.breakAndIndentTrailingComment().isPresent());
-              if (breakAfter) {
-                tokOps.put(
-                    k + 1,
-                    Doc.Break.make(
-                        Doc.FillMode.FORCED,
-                        "",
-                        tokenOp.breakAndIndentTrailingComment().or(Const.ZERO)));
-              } else {
-                tokOps.put(k + 1, SPACE);
-              }
-              tokOps.putAll(k + 1, makeComment(tokAfter));
-              if (breakAfter) {
-                tokOps.put(k + 1, Doc.Break.make(Doc.FillMode.FORCED, "", ZERO));
-              }
-            }
-          }
+      }
+      splicer.add(op);
+      if (op instanceof Doc.Token) {
+        pendingToksAfter = (Doc.Token) op;
+      }
+    }
+    if (pendingToksAfter != null) {
+      insertToksAfter(splicer, pendingToksAfter);
+    }
+    return splicer.docBuilder.build();
+  }
+
+  private void insertToksBefore(Splicer splicer, Doc.Token tokenOp) {
+    Input.Token token = tokenOp.getToken();
+    if (!tokenOp.realOrImaginary().isReal()) {
+      /*
+       * This input token was mistakenly not generated for output. As no whitespace or comments
+       * were generated (presumably), copy all input non-tokens literally, even spaces and
+       * newlines.
+       */
+      for (Input.Tok tokBefore : token.getToksBefore()) {
+        splicer.insert(Doc.Tok.make(tokBefore));
+      }
+      return;
+    }
+    int newlines = 0; // Count of newlines in a row.
+    boolean space = false; // Do we need an extra space after a previous "/*" comment?
+    boolean lastWasComment = false; // Was the last thing we output a comment?
+    boolean allowBlankAfterLastComment = false;
+    boolean lastWasJavadoc = false;
+    for (Input.Tok tokBefore : token.getToksBefore()) {
+      if (tokBefore.isNewline()) {
+        newlines++;
+      } else if (tokBefore.isComment()) {
+        splicer.insert(
+            Doc.Break.make(
+                tokBefore.isSlashSlashComment() ? Doc.FillMode.FORCED : Doc.FillMode.UNIFIED,
+                "",
+                tokenOp.getPlusIndentCommentsBefore()));
+        insertComment(splicer, tokBefore);
+        space = tokBefore.isSlashStarComment();
+        newlines = 0;
+        lastWasComment = true;
+        lastWasJavadoc = tokBefore.isJavadocComment();
+        allowBlankAfterLastComment =
+            tokBefore.isSlashSlashComment()
+                || (tokBefore.isSlashStarComment() && !tokBefore.isJavadocComment());
+      }
+    }
+    if (allowBlankAfterLastComment && newlines > 1) {
+      // Force a line break after two newlines in a row following a line or block comment
+      output.blankLine(token.getTok().getIndex(), BlankLineWanted.YES);
+    }
+    if (lastWasJavadoc || (lastWasComment && newlines > 0)) {
+      splicer.insert(Doc.Break.makeForced());
+    } else if (space) {
+      splicer.insert(SPACE);
+    }
+  }
+
+  private static void insertToksAfter(Splicer splicer, Doc.Token tokenOp) {
+    Input.Token token = tokenOp.getToken();
+    if (!tokenOp.realOrImaginary().isReal()) {
+      for (Input.Tok tokAfter : token.getToksAfter()) {
+        splicer.insert(Doc.Tok.make(tokAfter));
+      }
+      return;
+    }
+    for (Input.Tok tokAfter : token.getToksAfter()) {
+      if (tokAfter.isComment()) {
+        boolean breakAfter =
+            tokAfter.isJavadocComment()
+                || (tokAfter.isSlashStarComment()
+                    && tokenOp.breakAndIndentTrailingComment().isPresent());
+        if (breakAfter) {
+          splicer.insert(
+              Doc.Break.make(
+                  Doc.FillMode.FORCED,
+                  "",
+                  tokenOp.breakAndIndentTrailingComment().or(Const.ZERO)));
         } else {
-          /*
-           * This input token was mistakenly not generated for output. As no whitespace or comments
-           * were generated (presumably), copy all input non-tokens literally, even spaces and
-           * newlines.
-           */
-          for (Input.Tok tokBefore : token.getToksBefore()) {
-            tokOps.put(j, Doc.Tok.make(tokBefore));
-          }
-          for (Input.Tok tokAfter : token.getToksAfter()) {
-            tokOps.put(k + 1, Doc.Tok.make(tokAfter));
-          }
+          splicer.insert(SPACE);
+        }
+        insertComment(splicer, tokAfter);
+        if (breakAfter) {
+          splicer.insert(Doc.Break.make(Doc.FillMode.FORCED, "", ZERO));
         }
       }
     }
-    /*
-     * Construct new list of ops, splicing in the comments. If a comment is inserted immediately
-     * before a space, suppress the space.
-     */
-    ImmutableList.Builder<Op> newOps = ImmutableList.builder();
+  }
+
+  private static void insertComment(Splicer splicer, Input.Tok comment) {
+    splicer.insert(Doc.Tok.make(comment));
+    if (!comment.isSlashStarComment()) {
+      splicer.insert(Doc.Break.makeForced());
+    }
+  }
+
+  private static boolean isForcedBreak(Op op) {
+    return op instanceof Doc.Break && ((Doc.Break) op).isForced();
+  }
+
+  /**
+   * Feeds {@link Op}s to a {@link DocBuilder}. If a comment is inserted immediately before a space,
+   * the space is suppressed.
+   */
+  private static final class Splicer {
+    final DocBuilder docBuilder = new DocBuilder();
     boolean afterForcedBreak = false; // Was the last Op a forced break? If so, suppress spaces.
-    for (int i = 0; i < opsN; i++) {
-      for (Op op : tokOps.get(i)) {
-        if (!(afterForcedBreak && op instanceof Doc.Space)) {
-          newOps.add(op);
-          afterForcedBreak = isForcedBreak(op);
-        }
+
+    /** Adds an {@link Op} inserted for a non-token. */
+    void insert(Op op) {
+      if (!(afterForcedBreak && op instanceof Doc.Space)) {
+        op.add(docBuilder);
+        afterForcedBreak = isForcedBreak(op);
       }
-      Op op = ops.get(i);
+    }
+
+    /** Adds one of the {@code OpsBuilder}'s own {@link Op}s. */
+    void add(Op op) {
       if (afterForcedBreak
           && (op instanceof Doc.Space
               || op instanceof Doc.Break
                   && ((Doc.Break) op).getPlusIndent() == 0
                   && " ".equals(((Doc) op).getFlat()))) {
-        continue;
+        return;
       }
-      newOps.add(op);
+      op.add(docBuilder);
       if (!(op instanceof OpenOp)) {
         afterForcedBreak = isForcedBreak(op);
       }
     }
-    for (Op op : tokOps.get(opsN)) {
-      if (!(afterForcedBreak && op instanceof Doc.Space)) {
-        newOps.add(op);
-        afterForcedBreak = isForcedBreak(op);
-      }
-    }
-    return newOps.build();
-  }
-
-  private static boolean isForcedBreak(Op op) {
-    return op instanceof Doc.Break && ((Doc.Break) op).isForced();
-  }
-
-  private static List<Op> makeComment(Input.Tok comment) {
-    return comment.isSlashStarComment()
-        ? ImmutableList.<Op>of(Doc.Tok.make(comment))
-        : ImmutableList.<Op>of(Doc.Tok.make(comment), Doc.Break.makeForced());
   }
 
   @Override
@@ -27,6 +27,8 @@ public abstract class Output extends InputOutput {
    * Unique identifier for a break.
    */
   public static final class BreakTag {
+    private static final Optional<Boolean> TAKEN = Optional.of(true);
+    private static final Optional<Boolean> NOT_TAKEN = Optional.of(false);
 
     Optional<Boolean> taken = Optional.absent();
 
@@ -36,7 +38,7 @@ public abstract class Output extends InputOutput {
       // whether a Level should be flowed. Using separate data structures
       // instead of mutation or adding an explicit 'reset' step would allow
       // a useful invariant to be enforced here.
-      taken = Optional.of(broken);
+      taken = broken ? TAKEN : NOT_TAKEN;
     }
 
     public boolean wasBreakTaken() {
@@ -0,0 +1,216 @@
+/*
+ * Copyright 2016 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.google.googlejavaformat.java;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import com.google.common.hash.HashCode;
+import com.google.common.hash.Hashing;
+
+import java.io.IOException;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A content-addressed cache of formatting results. Results are keyed by a hash of the input, the
+ * formatter version, and everything else that affects the output (the options and any line or
+ * character ranges), so an entry never needs to be invalidated.
+ *
+ * <p>Within one run, files with identical contents are formatted once: a file whose contents are
+ * being formatted by another thread waits for that result. Inputs that turned out to be formatted
+ * already are remembered for the rest of the run; other outputs are only kept in the on-disk cache,
+ * so that memory use does not grow with the number of files.
+ *
+ * <p>The on-disk cache, if any, holds one file per entry, written atomically. An entry for an
+ * input that is already formatted holds a single byte; any other holds the formatted output.
+ * Unreadable entries are treated as misses, so the cache directory may be deleted at any time.
+ */
+final class FormatCache {
+
+  /** The first byte of an entry whose input is already formatted. */
+  private static final byte UNCHANGED = '=';
+
+  /** The first byte of an entry followed by the formatted output. */
+  private static final byte CHANGED = '+';
+
+  /** The in-memory entry for an input that is already formatted. */
+  private static final Object UNCHANGED_IN_MEMORY = new Object();
+
+  private final Path directory;
+
+  /** Maps keys to the {@link FutureTask} computing them, or to {@link #UNCHANGED_IN_MEMORY}. */
+  private final ConcurrentMap<HashCode, Object> inMemory = new ConcurrentHashMap<>();
+
+  private final AtomicInteger hits = new AtomicInteger();
+
+  /**
+   * @param directory the directory for the on-disk cache, or {@code null} to only share results
+   *     within this run
+   */
+  FormatCache(Path directory) {
+    this.directory = directory;
+  }
+
+  /** Returns the number of inputs whose output came from the cache. */
+  int hits() {
+    return hits.get();
+  }
+
+  /**
+   * Returns the formatted output for an input, calling {@code formatter} only if no result for the
+   * same input and context is cached or in progress.
+   *
+   * @param context describes everything other than the input that affects the output
+   */
+  String format(String context, String input, FormatFileCallable formatter)
+      throws FormatterException {
+    HashCode key =
+        Hashing.sha256()
+            .newHasher()
+            .putString(GoogleJavaFormatVersion.VERSION, UTF_8)
+            .putChar('\n')
+            .putString(context, UTF_8)
+            .putChar('\n')
+            .putString(input, UTF_8)
+            .hash();
+    Object inProgress = inMemory.get(key);
+    if (inProgress == null) {
+      String cached = read(key, input);
+      if (cached != null) {
+        hits.incrementAndGet();
+        return cached;
+      }
+      FutureTask<String> task = new FutureTask<>(formatter);
+      inProgress = inMemory.putIfAbsent(key, task);
+      if (inProgress == null) {
+        return run(key, input, task);
+      }
+    }
+    if (inProgress == UNCHANGED_IN_MEMORY) {
+      hits.incrementAndGet();
+      return input;
+    }
+    @SuppressWarnings("unchecked") // only tasks and UNCHANGED_IN_MEMORY are stored
+    FutureTask<String> task = (FutureTask<String>) inProgress;
+    try {
+      String output = task.get();
+      hits.incrementAndGet();
+      return output;
+    } catch (ExecutionException e) {
+      // Diagnostics name the file, so report this file's own errors.
+      return formatter.call();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      return formatter.call();
+    }
+  }
+
+  private String run(HashCode key, String input, FutureTask<String> task)
+      throws FormatterException {
+    task.run();
+    String output;
+    try {
+      output = task.get();
+    } catch (ExecutionException e) {
+      inMemory.remove(key, task);
+      Throwable cause = e.getCause();
+      if (cause instanceof FormatterException) {
+        throw (FormatterException) cause;
+      }
+      if (cause instanceof RuntimeException) {
+        throw (RuntimeException) cause;
+      }
+      throw new AssertionError(cause);
+    } catch (InterruptedException e) {
+      throw new AssertionError(e); // the task has already run
+    }
+    if (output.equals(input)) {
+      inMemory.replace(key, task, UNCHANGED_IN_MEMORY);
+    } else {
+      inMemory.remove(key, task);
+    }
+    write(key, input, output);
+    return output;
+  }
+
+  private Path entry(HashCode key) {
+    String hex = key.toString();
+    return directory.resolve(hex.substring(0, 2)).resolve(hex.substring(2));
+  }
+
+  /** Returns the cached output for a key, or {@code null} if there is none. */
+  private String read(HashCode key, String input) {
+    if (directory == null) {
+      return null;
+    }
+    byte[] bytes;
+    try {
+      bytes = Files.readAllBytes(entry(key));
+    } catch (IOException e) {
+      return null;
+    }
+    if (bytes.length == 1 && bytes[0] == UNCHANGED) {
+      return input;
+    }
+    if (bytes.length > 0 && bytes[0] == CHANGED) {
+      return new String(bytes, 1, bytes.length - 1, UTF_8);
+    }
+    return null;
+  }
+
+  /** Stores an output, ignoring errors; a failed write only costs a later miss. */
+  private void write(HashCode key, String input, String output) {
+    if (directory == null) {
+      return;
+    }
+    byte[] bytes;
+    if (output.equals(input)) {
+      bytes = new byte[] {UNCHANGED};
+    } else {
+      byte[] formatted = output.getBytes(UTF_8);
+      bytes = new byte[formatted.length + 1];
+      bytes[0] = CHANGED;
+      System.arraycopy(formatted, 0, bytes, 1, formatted.length);
+    }
+    Path entry = entry(key);
+    try {
+      Path temp;
+      try {
+        temp = Files.createTempFile(entry.getParent(), null, null);
+      } catch (NoSuchFileException e) {
+        Files.createDirectories(entry.getParent());
+        temp = Files.createTempFile(entry.getParent(), null, null);
+      }
+      Files.write(temp, bytes);
+      try {
+        Files.move(temp, entry, StandardCopyOption.ATOMIC_MOVE);
+      } catch (AtomicMoveNotSupportedException e) {
+        Files.move(temp, entry, StandardCopyOption.REPLACE_EXISTING);
+      } catch (IOException e) {
+        Files.deleteIfExists(temp);
+      }
+    } catch (IOException e) {
+      // ignore
+    }
+  }
+}
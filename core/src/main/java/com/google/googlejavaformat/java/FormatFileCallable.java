@@ -19,6 +19,7 @@ import com.google.common.collect.ImmutableRangeSet;
 import com.google.common.collect.Range;
 import com.google.common.collect.RangeSet;
 import com.google.common.collect.TreeRangeSet;
+import com.google.googlejavaformat.java.FormatterListener.Phase;
 import com.google.googlejavaformat.java.JavaFormatterOptions.SortImports;
 
 import java.util.List;
@@ -53,18 +54,39 @@ public class FormatFileCallable implements Callable<String> {
 
   @Override
   public String call() throws FormatterException {
+    PhaseTimer timer = new PhaseTimer(fileName, options.listener());
 
     // TODO(cushon): figure out how to integrate import ordering into Formatter
-    String inputString = input;
-    if (options.sortImports() != SortImports.NO) {
-      inputString = ImportOrderer.reorderImports(fileName, inputString);
-      if (options.sortImports() == SortImports.ONLY) {
-        return inputString;
-      }
+    if (options.sortImports() == SortImports.ONLY) {
+      // Only the imports need to be lexed.
+      timer.start(Phase.SORT_IMPORTS);
+      String result = ImportOrderer.reorderImports(fileName, input);
+      timer.end();
+      return result;
+    }
+
+    // Lex once, and share the toks between import ordering, modifier ordering, and formatting.
+    timer.start(Phase.LEX);
+    JavaInput javaInput = new JavaInput(fileName, input);
+    if (options.sortImports() == SortImports.ALSO) {
+      timer.start(Phase.SORT_IMPORTS);
+      javaInput = ImportOrderer.reorderImports(javaInput);
     }
 
     return new Formatter(fileName, options)
-        .formatSource(inputString, characterRanges(inputString).asRanges());
+        .formatSource(javaInput, characterRanges(javaInput.getText()).asRanges(), timer);
+  }
+
+  /**
+   * Returns the replacements that would format the requested ranges, without applying them.
+   * Import sorting rewrites the whole file, so it is not supported here.
+   */
+  ImmutableList<Replacement> getFormatReplacements() throws FormatterException {
+    if (options.sortImports() != SortImports.NO) {
+      throw new IllegalArgumentException("import sorting cannot be expressed as replacements");
+    }
+    return new Formatter(fileName, options)
+        .getFormatReplacements(input, characterRanges(input).asRanges());
   }
 
   private RangeSet<Integer> characterRanges(String input) {
@@ -0,0 +1,460 @@
+/*
+ * Copyright 2016 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.google.googlejavaformat.java;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableRangeSet;
+import com.google.common.collect.RangeSet;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Formats a stream of files with bounded memory. Each file goes through three stages: it is read
+ * and formatted on the executor, and then its output is either written back to the file or emitted
+ * to stdout. Only a fixed budget of bytes, measured by input size, may be between reading and the
+ * end of the last stage at once; {@link #add} blocks until there is room. A file's input and output
+ * are released as soon as it has been handled, so peak memory depends on the budget and the number
+ * of threads, not on the number or total size of the files.
+ *
+ * <p>When writing to stdout, outputs are emitted in the order the files were added, by a separate
+ * thread. In-place formatting and dry runs have no ordering constraint, so each file is written
+ * back, or its name printed, as soon as it is formatted; no output is held for the emitter.
+ *
+ * <p>Of the files waiting for a thread, the largest is formatted first, so that a few huge files
+ * added late do not run on their own after everything else has finished.
+ */
+final class FormatPipeline {
+
+  /** What to do with each formatted file. */
+  enum Mode {
+    /** Write the output to stdout, in the order the files were added. */
+    STDOUT,
+    /** Write the output back to the file, if it differs. */
+    IN_PLACE,
+    /** Print the name of the file, if the output differs. */
+    DRY_RUN,
+    /**
+     * Write a JSON object with the file name and output to stdout, one per line, in the order the
+     * files were added; for {@code --batch}.
+     */
+    JSON
+  }
+
+  /** A formatted file waiting to be emitted to stdout. */
+  private static final class Pending {
+    final Path path;
+    final Future<String> output;
+    final int cost;
+
+    Pending(Path path, Future<String> output, int cost) {
+      this.path = path;
+      this.output = output;
+      this.cost = cost;
+    }
+  }
+
+  /** Marks the end of the files to emit. */
+  private static final Pending END = new Pending(null, null, 0);
+
+  private final int threads;
+  private final ThreadPoolExecutor executorService;
+  private final int maxBufferedBytes;
+  private final Semaphore bufferedBytes;
+  private final Mode mode;
+  private final boolean failFast;
+  private final ImmutableRangeSet<Integer> lineRanges;
+  private final ImmutableList<Integer> offsets;
+  private final ImmutableList<Integer> lengths;
+  private final JavaFormatterOptions options;
+  private final PrintWriter outWriter;
+  private final PrintWriter errWriter;
+  private final AtomicBoolean allOk = new AtomicBoolean(true);
+  private final AtomicBoolean changed = new AtomicBoolean();
+  private final AtomicBoolean cancelled = new AtomicBoolean();
+  private final BlockingQueue<Pending> toEmit = new LinkedBlockingQueue<>();
+  private final Thread emitter;
+  private final FormatCache cache;
+
+  private final long startNanos = System.nanoTime();
+  private final AtomicInteger fileCount = new AtomicInteger();
+  private final AtomicLong busyNanos = new AtomicLong();
+  private final AtomicLong lastStartNanos = new AtomicLong(startNanos);
+  private long endNanos;
+  private final AtomicLong sequence = new AtomicLong();
+
+  /**
+   * @param threads the number of files to format at once
+   * @param maxBufferedBytes the number of bytes of input that may be in flight at once
+   * @param mode what to do with each formatted file
+   * @param failFast whether to stop at the first file whose output differs from its input
+   * @param cacheDirectory the directory of a {@link FormatCache} to reuse results from, or
+   *     {@code null} to only reuse results within this run
+   */
+  FormatPipeline(
+      int threads,
+      int maxBufferedBytes,
+      Mode mode,
+      boolean failFast,
+      RangeSet<Integer> lineRanges,
+      List<Integer> offsets,
+      List<Integer> lengths,
+      JavaFormatterOptions options,
+      PrintWriter outWriter,
+      PrintWriter errWriter,
+      Path cacheDirectory) {
+    this.threads = threads;
+    this.executorService =
+        new ThreadPoolExecutor(
+            threads, threads, 0, TimeUnit.SECONDS, new PriorityBlockingQueue<Runnable>());
+    this.maxBufferedBytes = maxBufferedBytes;
+    this.bufferedBytes = new Semaphore(maxBufferedBytes);
+    this.mode = mode;
+    this.failFast = failFast;
+    this.lineRanges = ImmutableRangeSet.copyOf(lineRanges);
+    this.offsets = ImmutableList.copyOf(offsets);
+    this.lengths = ImmutableList.copyOf(lengths);
+    this.options = options;
+    this.outWriter = outWriter;
+    this.errWriter = errWriter;
+    this.cache = new FormatCache(cacheDirectory);
+    if (!emits(mode)) {
+      emitter = null;
+    } else {
+      emitter =
+          new Thread(
+              new Runnable() {
+                @Override
+                public void run() {
+                  emitAll();
+                }
+              },
+              "google-java-format-emitter");
+      emitter.start();
+    }
+  }
+
+  /**
+   * Adds a file to format, blocking until the budget has room for it. A file larger than the whole
+   * budget waits until nothing else is in flight. May be called from several threads at once, but
+   * when writing to stdout the output order follows the order of the calls. Does nothing once the
+   * pipeline has been {@linkplain #isCancelled cancelled}.
+   *
+   * @param path the file
+   * @param size the size of the file in bytes, as an estimate of the memory it will need
+   */
+  void add(Path path, long size) {
+    add(path, size, lineRanges, offsets, lengths);
+  }
+
+  /**
+   * Adds a file to format with its own line and character ranges, instead of the ones given to the
+   * constructor. Otherwise like {@link #add(Path, long)}.
+   */
+  void add(
+      Path path,
+      long size,
+      RangeSet<Integer> lineRanges,
+      List<Integer> offsets,
+      List<Integer> lengths) {
+    int cost = (int) Math.max(0, Math.min(size, maxBufferedBytes));
+    bufferedBytes.acquireUninterruptibly(cost);
+    if (cancelled.get()) {
+      return;
+    }
+    FormatTask output =
+        new FormatTask(
+            new FormatFile(
+                path,
+                cost,
+                ImmutableRangeSet.copyOf(lineRanges),
+                ImmutableList.copyOf(offsets),
+                ImmutableList.copyOf(lengths)),
+            size,
+            sequence.getAndIncrement());
+    try {
+      executorService.execute(output);
+    } catch (RejectedExecutionException e) {
+      return; // cancelled concurrently
+    }
+    if (emits(mode)) {
+      toEmit.add(new Pending(path, output, cost));
+    }
+  }
+
+  /**
+   * Returns whether the pipeline stopped early because a file's output differed from its input and
+   * {@code failFast} was set.
+   */
+  boolean isCancelled() {
+    return cancelled.get();
+  }
+
+  /** Returns whether any file's output differed from its input. */
+  boolean changed() {
+    return changed.get();
+  }
+
+  /**
+   * Stops formatting: files that have not started are dropped, and files still being added are
+   * ignored. Files already being formatted are allowed to finish.
+   */
+  private void cancel() {
+    if (!cancelled.compareAndSet(false, true)) {
+      return;
+    }
+    // Running workers are never interrupted: an interrupted NIO write leaves the file truncated.
+    executorService.shutdown();
+    List<Runnable> queued = new ArrayList<>();
+    executorService.getQueue().drainTo(queued);
+    for (Runnable task : queued) {
+      ((FormatTask) task).cancel(false);
+    }
+    // Wake any thread waiting for room in the budget; the budget no longer matters.
+    bufferedBytes.release(Integer.MAX_VALUE / 2);
+  }
+
+  /** Waits for every added file to be handled, and returns whether all of them succeeded. */
+  boolean finish() {
+    executorService.shutdown();
+    try {
+      if (emitter != null) {
+        toEmit.add(END);
+        emitter.join();
+      }
+      executorService.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+    } catch (InterruptedException e) {
+      errWriter.println(e.getMessage());
+      Thread.currentThread().interrupt();
+      return false;
+    } finally {
+      endNanos = System.nanoTime();
+    }
+    return allOk.get();
+  }
+
+  /**
+   * Prints how well the threads were used, for the {@code --profile} flag. Utilization is the time
+   * spent formatting, summed over all threads, divided by the time all threads were available. The
+   * tail is the time from when the last file started formatting to the end of the run; it is long
+   * when large files are left until last.
+   */
+  void printUtilization(PrintWriter writer) {
+    long wallNanos = endNanos - startNanos;
+    String format = "%-18s %s%n";
+    writer.format(format, "files", fileCount.get());
+    writer.format(format, "threads", threads);
+    writer.format(format, "cached", cache.hits());
+    writer.format(format, "wall time (ms)", TimeUnit.NANOSECONDS.toMillis(wallNanos));
+    writer.format(format, "busy time (ms)", TimeUnit.NANOSECONDS.toMillis(busyNanos.get()));
+    writer.format(
+        format,
+        "utilization %",
+        wallNanos > 0 ? String.format("%.1f", 100.0 * busyNanos.get() / wallNanos / threads) : "-");
+    writer.format(
+        format, "tail (ms)", TimeUnit.NANOSECONDS.toMillis(endNanos - lastStartNanos.get()));
+    writer.flush();
+  }
+
+  private void emitAll() {
+    while (true) {
+      Pending pending = toEmit.poll();
+      if (pending == null) {
+        // Flush what has been emitted so far before waiting for more.
+        outWriter.flush();
+        pending = takeUninterruptibly();
+      }
+      if (pending == END) {
+        return;
+      }
+      String output;
+      try {
+        output = pending.output.get();
+      } catch (CancellationException e) {
+        output = null;
+      } catch (InterruptedException | ExecutionException e) {
+        errWriter.println(e.getMessage());
+        allOk.set(false);
+        output = null;
+      }
+      if (output != null && mode == Mode.JSON) {
+        outWriter.write(
+            "{\"file\":"
+                + Json.quote(pending.path.toString())
+                + ",\"output\":"
+                + Json.quote(output)
+                + "}\n");
+      } else if (output != null) {
+        outWriter.write(output);
+      }
+      bufferedBytes.release(pending.cost);
+    }
+  }
+
+  private Pending takeUninterruptibly() {
+    while (true) {
+      try {
+        return toEmit.take();
+      } catch (InterruptedException e) {
+        // keep waiting; finish() always sends END
+      }
+    }
+  }
+
+  /** A queued file; the larger of two files runs first, and otherwise the one added first. */
+  private static final class FormatTask extends FutureTask<String>
+      implements Comparable<FormatTask> {
+    private final long size;
+    private final long sequence;
+
+    FormatTask(Callable<String> callable, long size, long sequence) {
+      super(callable);
+      this.size = size;
+      this.sequence = sequence;
+    }
+
+    @Override
+    public int compareTo(FormatTask other) {
+      int bySize = Long.compare(other.size, size);
+      return bySize != 0 ? bySize : Long.compare(sequence, other.sequence);
+    }
+  }
+
+  /** Returns whether outputs in {@code mode} are emitted to stdout, in order, by the emitter. */
+  private static boolean emits(Mode mode) {
+    return mode == Mode.STDOUT || mode == Mode.JSON;
+  }
+
+  private void error(String message) {
+    errWriter.println(message);
+    allOk.set(false);
+  }
+
+  /**
+   * Reads and formats a file. When emitting to stdout it returns the output, or {@code null} on
+   * error, for the emitter; otherwise it handles the output itself and releases the file's share
+   * of the budget.
+   */
+  private final class FormatFile implements Callable<String> {
+    private final Path path;
+    private final int cost;
+    private final ImmutableRangeSet<Integer> lineRanges;
+    private final ImmutableList<Integer> offsets;
+    private final ImmutableList<Integer> lengths;
+
+    FormatFile(
+        Path path,
+        int cost,
+        ImmutableRangeSet<Integer> lineRanges,
+        ImmutableList<Integer> offsets,
+        ImmutableList<Integer> lengths) {
+      this.path = path;
+      this.cost = cost;
+      this.lineRanges = lineRanges;
+      this.offsets = offsets;
+      this.lengths = lengths;
+    }
+
+    @Override
+    public String call() {
+      long start = System.nanoTime();
+      lastStartNanos.set(start);
+      fileCount.incrementAndGet();
+      try {
+        return format();
+      } finally {
+        busyNanos.addAndGet(System.nanoTime() - start);
+        if (!emits(mode)) {
+          bufferedBytes.release(cost);
+        }
+      }
+    }
+
+    private String format() {
+      String input;
+      try {
+        input = new String(Files.readAllBytes(path), UTF_8);
+      } catch (IOException e) {
+        error(path + ": could not read file: " + e.getMessage());
+        return null;
+      }
+      String formatted;
+      try {
+        formatted =
+            cache.format(
+                options + "\n" + lineRanges + "\n" + offsets + "\n" + lengths,
+                input,
+                new FormatFileCallable(
+                    path.toString(), lineRanges, offsets, lengths, input, options));
+      } catch (FormatterException e) {
+        error(e.getMessage());
+        return null;
+      } catch (RuntimeException e) {
+        error(path + ": error: " + e.getMessage());
+        return null;
+      }
+      if (!formatted.equals(input)) {
+        changed.set(true);
+        if (failFast) {
+          cancel();
+        }
+      }
+      switch (mode) {
+        case STDOUT:
+        case JSON:
+          return formatted;
+        case IN_PLACE:
+          if (formatted.equals(input)) {
+            return null; // preserve original file
+          }
+          // An interrupted NIO write stops part way, so never start one with the flag set.
+          Thread.interrupted();
+          try {
+            Files.write(path, formatted.getBytes(UTF_8));
+          } catch (IOException e) {
+            error(path + ": could not write file: " + e.getMessage());
+          }
+          return null;
+        case DRY_RUN:
+          if (!formatted.equals(input)) {
+            outWriter.println(path);
+          }
+          return null;
+      }
+      throw new AssertionError(mode);
+    }
+  }
+}
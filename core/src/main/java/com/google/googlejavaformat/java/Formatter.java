@@ -16,6 +16,7 @@ package com.google.googlejavaformat.java;
 
 import com.google.common.base.CharMatcher;
 import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.Range;
 import com.google.common.collect.RangeSet;
 import com.google.common.collect.TreeRangeSet;
@@ -23,10 +24,10 @@ import com.google.common.io.CharSink;
 import com.google.common.io.CharSource;
 import com.google.errorprone.annotations.Immutable;
 import com.google.googlejavaformat.Doc;
-import com.google.googlejavaformat.DocBuilder;
 import com.google.googlejavaformat.FormatterDiagnostic;
 import com.google.googlejavaformat.Op;
 import com.google.googlejavaformat.OpsBuilder;
+import com.google.googlejavaformat.java.FormatterListener.Phase;
 import com.google.googlejavaformat.java.JavaFormatterOptions.JavadocFormatter;
 import com.google.googlejavaformat.java.JavaFormatterOptions.SortImports;
 import com.google.googlejavaformat.java.JavaFormatterOptions.Style;
@@ -38,6 +39,7 @@ import org.eclipse.jdt.core.dom.CompilationUnit;
 import org.eclipse.jdt.core.dom.Message;
 
 import java.io.IOException;
+import java.io.Writer;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
@@ -103,6 +105,44 @@ public final class Formatter {
     this.options = options;
   }
 
+  /**
+   * The compiler options used for parsing. They don't depend on the {@link JavaFormatterOptions},
+   * so they are computed once: {@link JavaCore#getOptions} copies JDT's global options on every
+   * call.
+   */
+  private static final ImmutableMap<String, String> PARSER_OPTIONS = parserOptions();
+
+  private static ImmutableMap<String, String> parserOptions() {
+    @SuppressWarnings("unchecked") // safe by specification
+    Map<String, String> parserOptions = JavaCore.getOptions();
+    JavaCore.setComplianceOptions(JavaCore.VERSION_1_8, parserOptions);
+    return ImmutableMap.copyOf(parserOptions);
+  }
+
+  /**
+   * Each thread reuses its own {@link ASTParser}; {@link ASTParser#createAST} resets the parser to
+   * its initial state, so it is configured again before every use.
+   */
+  private static final ThreadLocal<ASTParser> PARSER =
+      new ThreadLocal<ASTParser>() {
+        @Override
+        protected ASTParser initialValue() {
+          return ASTParser.newParser(AST.JLS8);
+        }
+      };
+
+  /**
+   * Returns the current thread's {@link ASTParser}, configured to parse {@code source} as a Java 8
+   * compilation unit. The parser must be used by calling {@link ASTParser#createAST} before
+   * {@code parser} is called again on the same thread.
+   */
+  static ASTParser parser(String source) {
+    ASTParser parser = PARSER.get();
+    parser.setSource(source.toCharArray());
+    parser.setCompilerOptions(PARSER_OPTIONS);
+    return parser;
+  }
+
   /**
    * Construct a {@code Formatter} given a Java compilation unit. Parses the code; builds a
    * {@link JavaInput} and the corresponding {@link JavaOutput}.
@@ -110,36 +150,61 @@ public final class Formatter {
    * @param javaOutput the {@link JavaOutput}
    * @param options the {@link JavaFormatterOptions}
    * @param errors mutable list to receive errors
+   * @param timer the {@link PhaseTimer} to report each phase to
    */
   static void format(
       JavaInput javaInput,
       JavaOutput javaOutput,
       JavaFormatterOptions options,
-      List<FormatterDiagnostic> errors) {
-    ASTParser parser = ASTParser.newParser(AST.JLS8);
-    parser.setSource(javaInput.getText().toCharArray());
-    @SuppressWarnings("unchecked") // safe by specification
-    Map<String, String> parserOptions = JavaCore.getOptions();
-    JavaCore.setComplianceOptions(JavaCore.VERSION_1_8, parserOptions);
-    parser.setCompilerOptions(parserOptions);
-    CompilationUnit unit = (CompilationUnit) parser.createAST(null);
+      List<FormatterDiagnostic> errors,
+      PhaseTimer timer) {
+    Doc doc = layout(javaInput, javaOutput, options, errors, timer);
+    if (doc == null) {
+      return;
+    }
+    timer.start(Phase.WRITE);
+    doc.write(javaOutput);
+    javaOutput.flush();
+    timer.end();
+  }
+
+  /**
+   * Parses the input, builds its {@link Doc}, and computes the breaks, without writing it to the
+   * {@link JavaOutput}.
+   *
+   * @return the laid-out {@link Doc}, or {@code null} if the input could not be parsed
+   */
+  private static Doc layout(
+      JavaInput javaInput,
+      JavaOutput javaOutput,
+      JavaFormatterOptions options,
+      List<FormatterDiagnostic> errors,
+      PhaseTimer timer) {
+    timer.start(Phase.PARSE);
+    CompilationUnit unit = (CompilationUnit) parser(javaInput.getText()).createAST(null);
     javaInput.setCompilationUnit(unit);
     if (unit.getMessages().length > 0) {
       for (Message message : unit.getMessages()) {
         errors.add(javaInput.createDiagnostic(message.getStartPosition(), message.getMessage()));
       }
-      return;
+      timer.end();
+      return null;
     }
+    timer.start(Phase.VISIT);
     OpsBuilder builder = new OpsBuilder(javaInput, javaOutput, errors);
     // Output the compilation unit.
     new JavaInputAstVisitor(builder, options.indentationMultiplier()).visit(unit);
     builder.sync(javaInput.getText().length());
     builder.drain();
-    Doc doc = new DocBuilder().withOps(builder.build()).build();
+    timer.start(Phase.BUILD_DOC);
+    Doc doc = builder.build();
+    timer.start(Phase.LAYOUT);
     doc.computeBreaks(
-        javaOutput.getCommentsHelper(), options.maxLineLength(), new Doc.State(+0, 0));
-    doc.write(javaOutput);
-    javaOutput.flush();
+        javaOutput.getCommentsHelper(),
+        options.maxLineLength(),
+        new Doc.State(+0, 0).withParallelLayout(options.parallelLayoutMinTokens()));
+    timer.end();
+    return doc;
   }
 
   /**
@@ -149,9 +214,34 @@ public final class Formatter {
    */
   public void formatSource(CharSource input, CharSink output)
       throws FormatterException, IOException {
-    // TODO(cushon): proper support for streaming input/output. Input may
-    // not be feasible (parsing) but output should be easier.
-    output.write(formatSource(input.read()));
+    // Parsing needs the whole input, but the output is written as it is laid out: no output lines
+    // or replacements are kept, and the sink is only opened once the input has been formatted.
+    String text = input.read();
+    if (text.isEmpty()) {
+      output.write(text);
+      return;
+    }
+    PhaseTimer timer = new PhaseTimer(fileName, options.listener());
+    timer.start(Phase.LEX);
+    JavaInput javaInput = new JavaInput(fileName, text);
+    timer.start(Phase.REORDER_MODIFIERS);
+    javaInput =
+        ModifierOrderer.reorderModifiers(
+            javaInput, Collections.singleton(Range.closedOpen(0, text.length())));
+    JavaOutput javaOutput = new JavaOutput(javaInput, new JavaCommentsHelper(options));
+    List<FormatterDiagnostic> errors = new ArrayList<>();
+    Doc doc = layout(javaInput, javaOutput, options, errors, timer);
+    if (!errors.isEmpty()) {
+      throw new FormatterException(errors);
+    }
+    timer.start(Phase.WRITE);
+    try (Writer writer = output.openBufferedStream()) {
+      javaOutput.streamTo(writer);
+      doc.write(javaOutput);
+      javaOutput.flushStream();
+    } finally {
+      timer.end();
+    }
   }
 
   /**
@@ -189,21 +279,99 @@ public final class Formatter {
    */
   public ImmutableList<Replacement> getFormatReplacements(
       String input, Collection<Range<Integer>> characterRanges) throws FormatterException {
+    PhaseTimer timer = new PhaseTimer(fileName, options.listener());
+    ImmutableList<Replacement> replacements = formatMembers(input, characterRanges, timer);
+    if (replacements != null) {
+      return replacements;
+    }
+    timer.start(Phase.LEX);
+    return formatCompilationUnit(new JavaInput(fileName, input), characterRanges, timer);
+  }
+
+  /**
+   * Format an already-lexed input, for only the specified character ranges.
+   *
+   * @param javaInput the input compilation unit
+   * @param characterRanges the character ranges to be reformatted
+   * @param timer the {@link PhaseTimer} to report each phase to
+   * @return the output string
+   * @throws FormatterException if the input string cannot be parsed
+   */
+  String formatSource(
+      JavaInput javaInput, Collection<Range<Integer>> characterRanges, PhaseTimer timer)
+      throws FormatterException {
+    return JavaOutput.applyReplacements(
+        javaInput.getText(), getFormatReplacements(javaInput, characterRanges, timer));
+  }
 
+  /**
+   * Emit a list of {@link Replacement}s to convert from an already-lexed input to output. The
+   * input's toks are shared with modifier reordering, which only lexes again if it changed
+   * anything.
+   */
+  private ImmutableList<Replacement> getFormatReplacements(
+      JavaInput javaInput, Collection<Range<Integer>> characterRanges, PhaseTimer timer)
+      throws FormatterException {
+    ImmutableList<Replacement> replacements =
+        formatMembers(javaInput.getText(), characterRanges, timer);
+    if (replacements != null) {
+      return replacements;
+    }
+    return formatCompilationUnit(javaInput, characterRanges, timer);
+  }
+
+  /**
+   * Formatting a few lines of a large file only needs to visit and lay out the declarations around
+   * them: emit a list of {@link Replacement}s for only the declarations the ranges are in, or
+   * return {@code null} if the whole compilation unit needs formatting.
+   */
+  private ImmutableList<Replacement> formatMembers(
+      String input, Collection<Range<Integer>> characterRanges, PhaseTimer timer) {
+    RangeSet<Integer> requested = TreeRangeSet.create();
+    for (Range<Integer> range : characterRanges) {
+      requested.add(range);
+    }
+    if (requested.encloses(Range.closedOpen(0, input.length()))) {
+      return null;
+    }
+    ImmutableList<Replacement> replacements =
+        MemberFormatter.formatMembers(this, input, characterRanges, timer);
+    timer.end();
+    return replacements;
+  }
+
+  /**
+   * Emit a list of {@link Replacement}s to convert a stub compilation unit built by
+   * {@link MemberFormatter} to output, without looking for declarations to format on their own.
+   */
+  ImmutableList<Replacement> getStubFormatReplacements(
+      String stub, Collection<Range<Integer>> characterRanges, PhaseTimer timer)
+      throws FormatterException {
+    timer.start(Phase.LEX);
+    return formatCompilationUnit(new JavaInput(fileName, stub), characterRanges, timer);
+  }
+
+  /** Emit a list of {@link Replacement}s, formatting the whole compilation unit. */
+  private ImmutableList<Replacement> formatCompilationUnit(
+      JavaInput javaInput, Collection<Range<Integer>> characterRanges, PhaseTimer timer)
+      throws FormatterException {
     // TODO(cushon): this is only safe because the modifier ordering doesn't affect whitespace,
     // and doesn't change the replacements that are output. This is not true in general for
     // 'de-linting' changes (e.g. import ordering).
-    input = ModifierOrderer.reorderModifiers(fileName, input, characterRanges);
+    timer.start(Phase.REORDER_MODIFIERS);
+    javaInput = ModifierOrderer.reorderModifiers(javaInput, characterRanges);
 
-    JavaInput javaInput = new JavaInput(fileName, input);
     JavaOutput javaOutput = new JavaOutput(javaInput, new JavaCommentsHelper(options));
     List<FormatterDiagnostic> errors = new ArrayList<>();
-    format(javaInput, javaOutput, options, errors);
+    format(javaInput, javaOutput, options, errors, timer);
     if (!errors.isEmpty()) {
       throw new FormatterException(errors);
     }
+    timer.start(Phase.REPLACEMENTS);
     RangeSet<Integer> tokenRangeSet = javaInput.characterRangesToTokenRanges(characterRanges);
-    return javaOutput.getFormatReplacements(tokenRangeSet);
+    ImmutableList<Replacement> replacements = javaOutput.getFormatReplacements(tokenRangeSet);
+    timer.end();
+    return replacements;
   }
 
   static final CharMatcher NEWLINE = CharMatcher.is('\n');
@@ -0,0 +1,209 @@
+/*
+ * Copyright 2016 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.google.googlejavaformat.java;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintStream;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A thin command-line client for {@link FormatterServer}. It accepts the common {@link Main} flags
+ * and sends each file to the server over one connection. It deliberately uses only the JDK and
+ * {@link ServerProtocol}, so that starting it loads neither the formatter nor its dependencies.
+ *
+ * <pre>
+ * java -cp google-java-format-all-deps.jar com.google.googlejavaformat.java.FormatterClient \
+ *     --port=N [--token-file=PATH] [-i] [--aosp] [--sort-imports=only|also] [--lines=N:M] \
+ *     [--offset=N --length=N] [file...|-]
+ * java ... FormatterClient --port=N [--token-file=PATH] --shutdown
+ * </pre>
+ *
+ * <p>The token sent with each request is read from the server's token file, by default
+ * {@link ServerProtocol#defaultTokenFile}.
+ */
+public final class FormatterClient {
+
+  private static final String USAGE =
+      "Usage: FormatterClient --port=N [--token-file=PATH] [-i] [--aosp]"
+          + " [--sort-imports=only|also] [--lines=N:M] [--offset=N --length=N] (file...|-)"
+          + " | --port=N [--token-file=PATH] --shutdown";
+
+  private FormatterClient() {}
+
+  public static void main(String[] args) {
+    System.exit(run(args, System.in, System.out, System.err));
+  }
+
+  /**
+   * Runs the client, returning 0 on success, 1 if a file could not be formatted, or 2 on a usage or
+   * connection error.
+   */
+  static int run(String[] args, InputStream stdin, PrintStream out, PrintStream err) {
+    int port = -1;
+    Path tokenFile = null;
+    boolean inPlace = false;
+    boolean shutdown = false;
+    byte style = ServerProtocol.STYLE_GOOGLE;
+    byte sortImports = ServerProtocol.SORT_IMPORTS_NO;
+    List<int[]> lineRanges = new ArrayList<>();
+    List<Integer> offsets = new ArrayList<>();
+    List<Integer> lengths = new ArrayList<>();
+    List<String> files = new ArrayList<>();
+    try {
+      for (String arg : args) {
+        if (arg.startsWith("--port=")) {
+          port = Integer.parseInt(value(arg));
+        } else if (arg.startsWith("--token-file=")) {
+          tokenFile = Paths.get(value(arg));
+        } else if (arg.equals("-i") || arg.equals("--replace")) {
+          inPlace = true;
+        } else if (arg.equals("--shutdown")) {
+          shutdown = true;
+        } else if (arg.equals("--aosp") || arg.equals("-a")) {
+          style = ServerProtocol.STYLE_AOSP;
+        } else if (arg.equals("--sort-imports=only")) {
+          sortImports = ServerProtocol.SORT_IMPORTS_ONLY;
+        } else if (arg.equals("--sort-imports=also")) {
+          sortImports = ServerProtocol.SORT_IMPORTS_ALSO;
+        } else if (arg.startsWith("--lines=")) {
+          for (String range : value(arg).split(",")) {
+            lineRanges.add(parseLineRange(range));
+          }
+        } else if (arg.startsWith("--offset=")) {
+          offsets.add(Integer.parseInt(value(arg)));
+        } else if (arg.startsWith("--length=")) {
+          lengths.add(Integer.parseInt(value(arg)));
+        } else if (arg.equals("-") || !arg.startsWith("-")) {
+          files.add(arg);
+        } else {
+          throw new IllegalArgumentException(arg);
+        }
+      }
+    } catch (IllegalArgumentException e) {
+      err.println(USAGE);
+      return 2;
+    }
+    if (port < 0 || offsets.size() != lengths.size() || (files.isEmpty() != shutdown)) {
+      err.println(USAGE);
+      return 2;
+    }
+
+    if (tokenFile == null) {
+      tokenFile = ServerProtocol.defaultTokenFile(port);
+    }
+    String token;
+    try {
+      token = new String(Files.readAllBytes(tokenFile), UTF_8).trim();
+    } catch (IOException e) {
+      err.println("google-java-format server: could not read token file " + tokenFile);
+      return 2;
+    }
+
+    try (Socket socket = new Socket(InetAddress.getLoopbackAddress(), port)) {
+      DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+      DataOutputStream request =
+          new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+      if (shutdown) {
+        request.writeInt(ServerProtocol.MAGIC);
+        ServerProtocol.writeString(request, token);
+        request.writeByte(ServerProtocol.SHUTDOWN);
+        request.flush();
+        if (in.readByte() != ServerProtocol.OK) {
+          err.println(ServerProtocol.readString(in));
+          return 1;
+        }
+        return 0;
+      }
+      int result = 0;
+      for (String file : files) {
+        boolean stdinFile = file.equals("-");
+        String input =
+            new String(stdinFile ? readAll(stdin) : Files.readAllBytes(Paths.get(file)), UTF_8);
+        request.writeInt(ServerProtocol.MAGIC);
+        ServerProtocol.writeString(request, token);
+        request.writeByte(ServerProtocol.FORMAT);
+        ServerProtocol.writeString(request, stdinFile ? Formatter.STDIN_FILENAME : file);
+        request.writeByte(style);
+        request.writeByte(sortImports);
+        request.writeInt(lineRanges.size());
+        for (int[] range : lineRanges) {
+          request.writeInt(range[0]);
+          request.writeInt(range[1]);
+        }
+        request.writeInt(offsets.size());
+        for (int i = 0; i < offsets.size(); i++) {
+          request.writeInt(offsets.get(i));
+          request.writeInt(lengths.get(i));
+        }
+        ServerProtocol.writeString(request, input);
+        request.flush();
+
+        byte status = in.readByte();
+        String response = ServerProtocol.readString(in);
+        if (status != ServerProtocol.OK) {
+          err.println(response);
+          result = 1;
+        } else if (inPlace && !stdinFile) {
+          if (!response.equals(input)) {
+            Path path = Paths.get(file);
+            Files.write(path, response.getBytes(UTF_8));
+          }
+        } else {
+          out.print(response);
+        }
+      }
+      out.flush();
+      return result;
+    } catch (IOException e) {
+      err.println("google-java-format server: " + e.getMessage());
+      return 2;
+    }
+  }
+
+  private static String value(String arg) {
+    return arg.substring(arg.indexOf('=') + 1);
+  }
+
+  /** Parses a 1-based, inclusive line range like "5:10" or "7" into a 0-based, exclusive one. */
+  private static int[] parseLineRange(String range) {
+    int colon = range.indexOf(':');
+    int first = Integer.parseInt(colon == -1 ? range : range.substring(0, colon));
+    int last = colon == -1 ? first : Integer.parseInt(range.substring(colon + 1));
+    return new int[] {first - 1, last};
+  }
+
+  private static byte[] readAll(InputStream in) throws IOException {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    byte[] buffer = new byte[8192];
+    for (int n; (n = in.read(buffer)) != -1; ) {
+      bytes.write(buffer, 0, n);
+    }
+    return bytes.toByteArray();
+  }
+}
@@ -0,0 +1,64 @@
+/*
+ * Copyright 2016 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.google.googlejavaformat.java;
+
+/**
+ * Receives the cost of each phase of formatting a file. A listener is installed with
+ * {@link JavaFormatterOptions#withListener}; since a {@link Formatter} may be used from many threads
+ * at once, implementations must be thread-safe.
+ */
+public interface FormatterListener {
+
+  /** The phases of formatting a file, in the order they run. */
+  enum Phase {
+    /** Lexing the input into a {@link JavaInput}. */
+    LEX,
+    /** Sorting imports (only if requested by {@link JavaFormatterOptions#sortImports}). */
+    SORT_IMPORTS,
+    /** Fixing the order of modifiers. */
+    REORDER_MODIFIERS,
+    /** Parsing the input into an Eclipse AST. */
+    PARSE,
+    /** Walking the AST to emit {@link com.google.googlejavaformat.Op}s. */
+    VISIT,
+    /** Inserting comments into the ops and building the {@link com.google.googlejavaformat.Doc}. */
+    BUILD_DOC,
+    /** Computing breaks, including rewriting comments. */
+    LAYOUT,
+    /** Writing the laid-out {@link com.google.googlejavaformat.Doc} to the {@link JavaOutput}. */
+    WRITE,
+    /** Computing the {@link Replacement}s from the input to the output. */
+    REPLACEMENTS
+  }
+
+  /** A listener that ignores all events. */
+  FormatterListener NONE =
+      new FormatterListener() {
+        @Override
+        public void phaseCompleted(
+            String fileName, Phase phase, long elapsedNanos, long allocatedBytes) {}
+      };
+
+  /**
+   * Called on the formatting thread after each phase completes.
+   *
+   * @param fileName the name of the file being formatted
+   * @param phase the phase that completed
+   * @param elapsedNanos the wall time spent in the phase, in nanoseconds
+   * @param allocatedBytes the number of bytes allocated by the formatting thread during the phase,
+   *     or {@code -1} if the JVM does not support measuring allocation
+   */
+  void phaseCompleted(String fileName, Phase phase, long elapsedNanos, long allocatedBytes);
+}
@@ -0,0 +1,416 @@
+/*
+ * Copyright 2016 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.google.googlejavaformat.java;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Range;
+import com.google.common.collect.RangeSet;
+import com.google.common.collect.TreeRangeSet;
+import com.google.common.io.BaseEncoding;
+import com.google.googlejavaformat.java.JavaFormatterOptions.JavadocFormatter;
+import com.google.googlejavaformat.java.JavaFormatterOptions.SortImports;
+import com.google.googlejavaformat.java.JavaFormatterOptions.Style;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A long-lived formatter process, so that editors and scripts that format one file at a time do not
+ * pay for JVM startup, class loading and JIT compilation on every file. It listens on a localhost
+ * port and answers {@link ServerProtocol} requests; {@link FormatterClient} is a thin command-line
+ * client for it.
+ *
+ * <pre>
+ * java -cp google-java-format-all-deps.jar com.google.googlejavaformat.java.FormatterServer \
+ *     [--port=N] [--threads=N] [--warmup-millis=N] [--token-file=PATH]
+ * </pre>
+ *
+ * <p>Every request must carry the token the server writes, readable only by its user, to the token
+ * file: by default {@link ServerProtocol#defaultTokenFile}. The file is removed when the server
+ * stops.
+ *
+ * <p>Before it starts accepting connections, the server warms itself up for a while by formatting a
+ * source it generates, and then prints the port it is listening on. Port 0, the default, picks a
+ * free port.
+ */
+public final class FormatterServer implements Closeable {
+
+  /** How long to warm up for, unless {@code --warmup-millis} says otherwise. */
+  private static final long DEFAULT_WARMUP_MILLIS = 3000;
+
+  private final ServerSocket serverSocket;
+  private final ExecutorService executorService;
+  private final Path tokenFile;
+  private final byte[] token;
+  private volatile boolean closed;
+
+  /**
+   * Binds the server to a localhost port, and writes a new token to the token file.
+   *
+   * @param port the port, or 0 for any free port
+   * @param threads the number of connections to serve at once
+   * @param tokenFile the file to write the token to, or {@code null} for
+   *     {@link ServerProtocol#defaultTokenFile}
+   */
+  FormatterServer(int port, int threads, Path tokenFile) throws IOException {
+    this.serverSocket = new ServerSocket(port, 50, InetAddress.getLoopbackAddress());
+    this.tokenFile =
+        tokenFile != null
+            ? tokenFile
+            : ServerProtocol.defaultTokenFile(serverSocket.getLocalPort());
+    byte[] random = new byte[16];
+    new SecureRandom().nextBytes(random);
+    String token = BaseEncoding.base16().lowerCase().encode(random);
+    try {
+      writeToken(this.tokenFile, token);
+    } catch (IOException e) {
+      serverSocket.close();
+      throw e;
+    }
+    this.token = token.getBytes(UTF_8);
+    this.executorService = Executors.newFixedThreadPool(threads);
+  }
+
+  /** Writes the token to a new file that only the current user can read. */
+  private static void writeToken(Path tokenFile, String token) throws IOException {
+    boolean posix = FileSystems.getDefault().supportedFileAttributeViews().contains("posix");
+    Path directory = tokenFile.toAbsolutePath().getParent();
+    if (posix) {
+      Files.createDirectories(
+          directory,
+          PosixFilePermissions.asFileAttribute(PosixFilePermissions.fromString("rwx------")));
+    } else {
+      Files.createDirectories(directory);
+    }
+    // A file left by a server that did not stop cleanly is replaced, never reused: createFile
+    // fails if someone else recreates it in between.
+    Files.deleteIfExists(tokenFile);
+    if (posix) {
+      Files.createFile(
+          tokenFile,
+          PosixFilePermissions.asFileAttribute(PosixFilePermissions.fromString("rw-------")));
+    } else {
+      Files.createFile(tokenFile);
+    }
+    Files.write(tokenFile, token.getBytes(UTF_8));
+  }
+
+  /** Returns the port the server is listening on. */
+  int port() {
+    return serverSocket.getLocalPort();
+  }
+
+  /**
+   * Formats a generated source, in both styles, until {@code millis} have passed, so the first
+   * real request does not pay for class loading and JIT compilation.
+   */
+  void warmUp(long millis) {
+    if (millis <= 0) {
+      return;
+    }
+    String source = warmUpSource(20);
+    long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(millis);
+    for (int i = 0; System.nanoTime() < deadline; i++) {
+      Style style = i % 2 == 0 ? Style.GOOGLE : Style.AOSP;
+      try {
+        new Formatter(new JavaFormatterOptions(JavadocFormatter.NONE, style, SortImports.NO))
+            .formatSource(source);
+      } catch (FormatterException e) {
+        throw new AssertionError(e);
+      }
+    }
+  }
+
+  /**
+   * Returns a badly formatted compilation unit with {@code members} copies of a member group that
+   * covers the common constructs: javadoc, annotations, generics, control flow, anonymous classes
+   * and lines long enough to need breaking.
+   */
+  static String warmUpSource(int members) {
+    StringBuilder sb = new StringBuilder();
+    sb.append("package warmup;\n")
+        .append("import java.util.List;import java.util.Map;\n")
+        .append("import java.util.ArrayList;\n")
+        .append("/** Generated. */ @SuppressWarnings(\"all\") public final class WarmUp<T extends")
+        .append(" Comparable<T>> implements Runnable {\n");
+    for (int i = 0; i < members; i++) {
+      sb.append("  /** Field ")
+          .append(i)
+          .append(". */ private static final ")
+          .append("Map<String,List<Integer>> field")
+          .append(i)
+          .append(" = null;\n")
+          .append("@Override public   String toString")
+          .append(i)
+          .append("( final List<? extends T> values , int limit)throws Exception{\n")
+          .append("int total=0;for(int j=0;j<limit;j++){if(j%3==0&&values.size()>j)")
+          .append("{total+=j;}else if(j>100){break;}else{continue;}}\n")
+          .append("switch(limit){case 0:return \"zero\";case 1: case 2:total++;break;")
+          .append("default:total--;}\n")
+          .append("try{Runnable r=new Runnable(){public void run(){System.out.println(")
+          .append("\"anonymous\");}};r.run();}catch(IllegalStateException|")
+          .append("IllegalArgumentException e){throw new Exception(e);}finally{total=0;}\n")
+          .append("List<String> strings=new ArrayList<>();strings.add(String.valueOf(")
+          .append("values.isEmpty()?\"an empty list of values\":values.get(0).toString()")
+          .append(".trim().toLowerCase().substring(0,Math.min(limit,values.size()))));\n")
+          .append("return strings.toString()+total+field")
+          .append(i)
+          .append(";}\n");
+    }
+    return sb.append("public void run(){}}\n").toString();
+  }
+
+  /** Accepts and serves connections until the server is closed or asked to shut down. */
+  void serve() throws IOException {
+    try {
+      while (true) {
+        final Socket socket;
+        try {
+          socket = serverSocket.accept();
+        } catch (IOException e) {
+          if (closed) {
+            return;
+          }
+          throw e;
+        }
+        executorService.execute(
+            new Runnable() {
+              @Override
+              public void run() {
+                try (Socket s = socket) {
+                  handle(s);
+                } catch (IOException | RuntimeException e) {
+                  // the client went away or sent a malformed request; drop the connection
+                }
+              }
+            });
+      }
+    } finally {
+      executorService.shutdown();
+    }
+  }
+
+  /** Returns the file the token was written to. */
+  Path tokenFile() {
+    return tokenFile;
+  }
+
+  @Override
+  public void close() throws IOException {
+    closed = true;
+    // Delete the token before closing, so the file is gone by the time run() returns.
+    try {
+      Files.deleteIfExists(tokenFile);
+    } finally {
+      serverSocket.close();
+    }
+  }
+
+  private void handle(Socket socket) throws IOException {
+    DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+    DataOutputStream out =
+        new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+    while (true) {
+      int magic;
+      try {
+        magic = in.readInt();
+      } catch (EOFException e) {
+        return;
+      }
+      if (magic != ServerProtocol.MAGIC) {
+        out.writeByte(ServerProtocol.ERROR);
+        ServerProtocol.writeString(out, "not a google-java-format request");
+        out.flush();
+        return;
+      }
+      byte[] requestToken;
+      try {
+        requestToken =
+            ServerProtocol.readString(in, ServerProtocol.MAX_TOKEN_BYTES).getBytes(UTF_8);
+      } catch (EOFException e) {
+        return;
+      } catch (IOException e) {
+        requestToken = new byte[0];
+      }
+      if (!MessageDigest.isEqual(requestToken, token)) {
+        out.writeByte(ServerProtocol.ERROR);
+        ServerProtocol.writeString(out, "bad token; it is in " + tokenFile);
+        out.flush();
+        return;
+      }
+      byte command = in.readByte();
+      switch (command) {
+        case ServerProtocol.SHUTDOWN:
+          out.writeByte(ServerProtocol.OK);
+          out.flush();
+          close();
+          return;
+        case ServerProtocol.FORMAT:
+        case ServerProtocol.REPLACEMENTS:
+          FormatFileCallable request;
+          try {
+            request = readRequest(in);
+          } catch (BadRequestException e) {
+            // The rest of the request is unread, so the connection cannot be reused.
+            out.writeByte(ServerProtocol.ERROR);
+            ServerProtocol.writeString(out, e.getMessage());
+            out.flush();
+            return;
+          }
+          answer(command, request, out);
+          break;
+        default:
+          out.writeByte(ServerProtocol.ERROR);
+          ServerProtocol.writeString(out, "unknown command: " + command);
+          out.flush();
+          return;
+      }
+      out.flush();
+    }
+  }
+
+  private static FormatFileCallable readRequest(DataInputStream in) throws IOException {
+    String fileName = ServerProtocol.readString(in);
+    Style style = readEnum(in, "style", Style.values());
+    SortImports sortImports = readEnum(in, "sort imports", SortImports.values());
+    RangeSet<Integer> lineRanges = TreeRangeSet.create();
+    for (int i = in.readInt(); i > 0; i--) {
+      lineRanges.add(Range.closedOpen(in.readInt(), in.readInt()));
+    }
+    List<Integer> offsets = new ArrayList<>();
+    List<Integer> lengths = new ArrayList<>();
+    for (int i = in.readInt(); i > 0; i--) {
+      offsets.add(in.readInt());
+      lengths.add(in.readInt());
+    }
+    String content = ServerProtocol.readString(in);
+    return new FormatFileCallable(
+        fileName,
+        lineRanges,
+        offsets,
+        lengths,
+        content,
+        new JavaFormatterOptions(JavadocFormatter.NONE, style, sortImports));
+  }
+
+  /** A request the server understood the framing of, but not the content. */
+  private static final class BadRequestException extends IOException {
+    BadRequestException(String message) {
+      super(message);
+    }
+  }
+
+  /** Reads a one-byte ordinal of {@code values}. */
+  private static <E extends Enum<E>> E readEnum(DataInputStream in, String what, E[] values)
+      throws IOException {
+    byte ordinal = in.readByte();
+    if (ordinal < 0 || ordinal >= values.length) {
+      throw new BadRequestException("unknown " + what + ": " + ordinal);
+    }
+    return values[ordinal];
+  }
+
+  private static void answer(byte command, FormatFileCallable request, DataOutputStream out)
+      throws IOException {
+    if (command == ServerProtocol.FORMAT) {
+      String output;
+      try {
+        output = request.call();
+      } catch (FormatterException | RuntimeException e) {
+        out.writeByte(ServerProtocol.ERROR);
+        ServerProtocol.writeString(out, String.valueOf(e.getMessage()));
+        return;
+      }
+      out.writeByte(ServerProtocol.OK);
+      ServerProtocol.writeString(out, output);
+    } else {
+      ImmutableList<Replacement> replacements;
+      try {
+        replacements = request.getFormatReplacements();
+      } catch (FormatterException | RuntimeException e) {
+        out.writeByte(ServerProtocol.ERROR);
+        ServerProtocol.writeString(out, String.valueOf(e.getMessage()));
+        return;
+      }
+      out.writeByte(ServerProtocol.OK);
+      out.writeInt(replacements.size());
+      for (Replacement replacement : replacements) {
+        out.writeInt(replacement.getReplaceRange().lowerEndpoint());
+        out.writeInt(replacement.getReplaceRange().upperEndpoint());
+        ServerProtocol.writeString(out, replacement.getReplacementString());
+      }
+    }
+  }
+
+  public static void main(String[] args) throws IOException {
+    int port = 0;
+    int threads = Runtime.getRuntime().availableProcessors();
+    long warmUpMillis = DEFAULT_WARMUP_MILLIS;
+    Path tokenFile = null;
+    try {
+      for (String arg : args) {
+        if (arg.startsWith("--port=")) {
+          port = Integer.parseInt(arg.substring("--port=".length()));
+        } else if (arg.startsWith("--threads=")) {
+          threads = Integer.parseInt(arg.substring("--threads=".length()));
+        } else if (arg.startsWith("--warmup-millis=")) {
+          warmUpMillis = Long.parseLong(arg.substring("--warmup-millis=".length()));
+        } else if (arg.startsWith("--token-file=")) {
+          tokenFile = Paths.get(arg.substring("--token-file=".length()));
+        } else {
+          throw new IllegalArgumentException(arg);
+        }
+      }
+    } catch (IllegalArgumentException e) {
+      System.err.println(
+          "Usage: FormatterServer [--port=N] [--threads=N] [--warmup-millis=N]"
+              + " [--token-file=PATH]");
+      System.exit(1);
+      return;
+    }
+    try (FormatterServer server = new FormatterServer(port, threads, tokenFile)) {
+      server.warmUp(warmUpMillis);
+      System.out.println(
+          "google-java-format server listening on port "
+              + server.port()
+              + ", token in "
+              + server.tokenFile());
+      System.out.flush();
+      server.serve();
+    }
+  }
+}
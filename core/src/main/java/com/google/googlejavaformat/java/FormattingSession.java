@@ -0,0 +1,301 @@
+/*
+ * Copyright 2016 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.google.googlejavaformat.java;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Iterables;
+import com.google.common.collect.Range;
+import com.google.common.collect.RangeSet;
+import com.google.common.collect.TreeRangeSet;
+import com.google.googlejavaformat.java.MemberFormatter.Member;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Formats one document over and over as it is edited, as an editor does on every save, redoing only
+ * the parts that changed since the last time.
+ *
+ * <p>The session remembers where the body declarations of the top-level types are, and which of
+ * them are known to be formatted. An edit inside one declaration only marks that declaration as
+ * changed; any other edit forgets what the session knows. When asked to format, each changed
+ * declaration the ranges touch is lexed, parsed and laid out on its own, inside a stub of its
+ * enclosing type, and the resulting {@link Replacement}s are moved back into the document. Anything
+ * else, such as a range covering the imports after they were edited, falls back to formatting the
+ * whole document with {@link Formatter}, with the same result.
+ *
+ * <p>A declaration is only handled on its own if it has its lines to itself, and if it still
+ * parses as a single declaration after the edits; otherwise the whole document is formatted.
+ *
+ * <p>Instances are not thread-safe.
+ */
+public final class FormattingSession {
+
+  private final String fileName;
+  private final JavaFormatterOptions options;
+  private final Formatter formatter;
+  private String text;
+
+  /** The body declarations of the top-level types, in order, or {@code null} if not known. */
+  private List<Member> members;
+
+  /** Whether the text outside of {@link #members} is known to be formatted. */
+  private boolean restFormatted;
+
+  /** The number of times the whole document has been formatted, for tests. */
+  private int fullFormatCount;
+
+  /**
+   * @param fileName the name of the document, for error messages
+   * @param options the options to format with
+   * @param text the current text of the document
+   */
+  public FormattingSession(String fileName, JavaFormatterOptions options, String text) {
+    this.fileName = fileName;
+    this.options = options;
+    this.formatter = new Formatter(fileName, options);
+    this.text = text;
+  }
+
+  /** Returns the text of the document, as of the last edit or format. */
+  public String getText() {
+    return text;
+  }
+
+  /**
+   * Records that the document was edited, replacing {@code length} characters at {@code offset}
+   * with {@code replacement}.
+   */
+  public void edit(int offset, int length, String replacement) {
+    if (offset < 0 || length < 0 || offset + length > text.length()) {
+      throw new IndexOutOfBoundsException(
+          "edit [" + offset + ", " + (offset + length) + ") of text of length " + text.length());
+    }
+    text = text.substring(0, offset) + replacement + text.substring(offset + length);
+    if (members == null) {
+      return;
+    }
+    int delta = replacement.length() - length;
+    for (int i = 0; i < members.size(); i++) {
+      Member member = members.get(i);
+      if (offset + length <= member.start) {
+        // An edit between declarations can change what they are, for example by opening a comment.
+        members = null;
+        restFormatted = false;
+        return;
+      }
+      if (member.start < offset && offset + length < member.end) {
+        member.formatted = false;
+        // The declaration decides the blank lines around its neighbours.
+        if (i > 0 && members.get(i - 1).stubEnd == member.end) {
+          members.get(i - 1).formatted = false;
+        }
+        if (i + 1 < members.size() && members.get(i + 1).stubStart == member.start) {
+          members.get(i + 1).formatted = false;
+        }
+        for (Member shifted : members) {
+          shifted.start += shifted.start >= offset + length ? delta : 0;
+          shifted.end += shifted.end >= offset + length ? delta : 0;
+          shifted.stubStart += shifted.stubStart >= offset + length ? delta : 0;
+          shifted.stubEnd += shifted.stubEnd >= offset + length ? delta : 0;
+        }
+        return;
+      }
+    }
+    members = null;
+    restFormatted = false;
+  }
+
+  /**
+   * Records that the document now has the given text, as a single edit replacing everything between
+   * the common prefix and suffix of the old and new texts.
+   */
+  public void update(String newText) {
+    int prefix = 0;
+    int limit = Math.min(text.length(), newText.length());
+    while (prefix < limit && text.charAt(prefix) == newText.charAt(prefix)) {
+      prefix++;
+    }
+    if (prefix == text.length() && prefix == newText.length()) {
+      return;
+    }
+    int suffix = 0;
+    limit -= prefix;
+    while (suffix < limit
+        && text.charAt(text.length() - 1 - suffix)
+            == newText.charAt(newText.length() - 1 - suffix)) {
+      suffix++;
+    }
+    edit(
+        prefix,
+        text.length() - prefix - suffix,
+        newText.substring(prefix, newText.length() - suffix));
+  }
+
+  /**
+   * Formats the given character ranges of the document, and updates the session's text to match.
+   *
+   * @param characterRanges the character ranges to reformat
+   * @return a list of {@link Replacement}s, sorted from low index to high index, without overlaps,
+   *     that the caller should apply to its copy of the document
+   * @throws FormatterException if the document cannot be parsed
+   */
+  public ImmutableList<Replacement> format(Collection<Range<Integer>> characterRanges)
+      throws FormatterException {
+    RangeSet<Integer> requested = TreeRangeSet.create();
+    boolean inBounds = true;
+    for (Range<Integer> range : characterRanges) {
+      requested.add(range);
+      inBounds &= Range.closed(0, text.length()).encloses(range);
+    }
+    if (members == null && inBounds) {
+      members = MemberFormatter.findMembers(text, false);
+    }
+    ImmutableList<Replacement> replacements = null;
+    if (members != null && inBounds) {
+      PhaseTimer timer = new PhaseTimer(fileName, options.listener());
+      replacements = formatMembers(requested, timer);
+      timer.end();
+    }
+    if (replacements == null) {
+      // Out of bounds ranges are reported the same way as by the Formatter.
+      return formatAll(characterRanges, requested);
+    }
+    text = JavaOutput.applyReplacements(text, replacements);
+    return replacements;
+  }
+
+  /** Returns the number of times the whole document has been formatted. */
+  int fullFormatCount() {
+    return fullFormatCount;
+  }
+
+  private ImmutableList<Replacement> formatAll(
+      Collection<Range<Integer>> characterRanges, RangeSet<Integer> requested)
+      throws FormatterException {
+    fullFormatCount++;
+    boolean everything = requested.encloses(Range.closedOpen(0, text.length()));
+    ImmutableList<Replacement> replacements =
+        formatter.getFormatReplacements(text, characterRanges);
+    text = JavaOutput.applyReplacements(text, replacements);
+    members = MemberFormatter.findMembers(text, everything);
+    restFormatted = everything;
+    return replacements;
+  }
+
+  /**
+   * Formats the requested ranges one declaration at a time, or returns {@code null} if that would
+   * not give the same result as formatting the whole document.
+   */
+  private ImmutableList<Replacement> formatMembers(RangeSet<Integer> requested, PhaseTimer timer) {
+    RangeSet<Integer> rest = TreeRangeSet.create(requested);
+    for (Member member : members) {
+      rest.remove(Range.closedOpen(member.start, member.end));
+    }
+    if (!rest.isEmpty()) {
+      // Formatting outside the declarations can spill into any of them.
+      if (!restFormatted) {
+        return null;
+      }
+      for (Member member : members) {
+        if (!member.formatted && !requested.encloses(Range.closedOpen(member.start, member.end))) {
+          return null;
+        }
+      }
+    }
+
+    List<Replacement> replacements = new ArrayList<>();
+    List<Member> formatted = new ArrayList<>();
+    int lastEnd = -1;
+    for (Member member : members) {
+      Range<Integer> span = Range.closedOpen(member.start, member.end);
+      RangeSet<Integer> ranges = requested.subRangeSet(span);
+      if (member.formatted || ranges.isEmpty()) {
+        continue;
+      }
+      List<Replacement> memberReplacements =
+          MemberFormatter.formatMember(formatter, text, member, ranges.asRanges(), timer);
+      if (memberReplacements == null) {
+        return null;
+      }
+      // Where the replacements of two declarations meet, the Formatter joins them into one, which
+      // can add blank lines between them.
+      if (!memberReplacements.isEmpty()) {
+        if (memberReplacements.get(0).getReplaceRange().lowerEndpoint() <= lastEnd) {
+          return null;
+        }
+        lastEnd = Iterables.getLast(memberReplacements).getReplaceRange().upperEndpoint();
+      }
+      for (Replacement replacement : memberReplacements) {
+        Range<Integer> range = replacement.getReplaceRange();
+        if (!span.encloses(range)) {
+          return null;
+        }
+        String replacementString = replacement.getReplacementString();
+        if (replacementString.length() != range.upperEndpoint() - range.lowerEndpoint()
+            || !text.startsWith(replacementString, range.lowerEndpoint())) {
+          replacements.add(replacement);
+        }
+      }
+      if (requested.encloses(span)) {
+        formatted.add(member);
+      }
+    }
+
+    // Move the declarations to where they are after the replacements, which are all inside the
+    // declarations.
+    Collections.sort(replacements, MemberFormatter.BY_START);
+    int[] ends = new int[replacements.size()];
+    int[] deltas = new int[replacements.size() + 1];
+    for (int i = 0; i < replacements.size(); i++) {
+      Replacement replacement = replacements.get(i);
+      Range<Integer> range = replacement.getReplaceRange();
+      ends[i] = range.upperEndpoint();
+      deltas[i + 1] =
+          deltas[i]
+              + replacement.getReplacementString().length()
+              - (range.upperEndpoint() - range.lowerEndpoint());
+    }
+    for (Member member : members) {
+      member.start += deltaBefore(ends, deltas, member.start);
+      member.end += deltaBefore(ends, deltas, member.end);
+      member.stubStart += deltaBefore(ends, deltas, member.stubStart);
+      member.stubEnd += deltaBefore(ends, deltas, member.stubEnd);
+    }
+    for (Member member : formatted) {
+      member.formatted = true;
+    }
+    return ImmutableList.copyOf(replacements);
+  }
+
+  /**
+   * Returns how far the replacements ending at {@code ends}, with the running totals of how much
+   * longer they make the text in {@code deltas}, move {@code position}.
+   */
+  private static int deltaBefore(int[] ends, int[] deltas, int position) {
+    int index = Arrays.binarySearch(ends, position);
+    if (index < 0) {
+      return deltas[-index - 1];
+    }
+    // Several empty replacements can end at the same position.
+    while (index + 1 < ends.length && ends[index + 1] == position) {
+      index++;
+    }
+    return deltas[index + 1];
+  }
+}
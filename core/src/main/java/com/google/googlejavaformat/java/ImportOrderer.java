@@ -36,7 +36,33 @@ class ImportOrderer {
    * @throws FormatterException if the input could not be parsed.
    */
   static String reorderImports(String filename, String text) throws FormatterException {
-    return new ImportOrderer(filename, text).reorderImports();
+    ImmutableList<Tok> toks;
+    try {
+      toks = JavaInput.buildToks(text, CLASS_START);
+    } catch (InvalidInputException e) {
+      FormatterException formatterException = new FormatterException(e.getMessage());
+      formatterException.initCause(e);
+      throw formatterException;
+    }
+    return new ImportOrderer(text, toks).reorderImports();
+  }
+
+  /**
+   * Reorder the imports in {@code javaInput}, reusing its toks instead of lexing the input again.
+   * The input is only lexed again if the imports were not already in order.
+   *
+   * @return {@code javaInput} if the imports were already in order, otherwise a new
+   *     {@link JavaInput} for the reordered program
+   * @throws FormatterException if the input could not be parsed.
+   */
+  static JavaInput reorderImports(JavaInput javaInput) throws FormatterException {
+    String text = javaInput.getText();
+    String reordered =
+        javaInput.getToks().isEmpty()
+            // The input couldn't be lexed; lex just the imports to report errors there.
+            ? reorderImports(javaInput.filename(), text)
+            : new ImportOrderer(text, javaInput.getToks()).reorderImports();
+    return reordered.equals(text) ? javaInput : new JavaInput(javaInput.filename(), reordered);
   }
 
   /**
@@ -57,16 +83,14 @@ class ImportOrderer {
   private final String text;
   private final ImmutableList<Tok> toks;
 
-  private ImportOrderer(String filename, String text) throws FormatterException {
+  /**
+   * @param text the input text
+   * @param toks the toks of {@code text}, either all of them or those before the first type
+   *     definition
+   */
+  private ImportOrderer(String text, ImmutableList<Tok> toks) {
     this.text = text;
-    JavaInput javaInput = new JavaInput(filename, text);
-    try {
-      this.toks = javaInput.buildToks(text, CLASS_START);
-    } catch (InvalidInputException e) {
-      FormatterException formatterException = new FormatterException(e.getMessage());
-      formatterException.initCause(e);
-      throw formatterException;
-    }
+    this.toks = toks;
   }
 
   /**
@@ -136,7 +160,7 @@ class ImportOrderer {
       tail = "";
     } else {
       Tok lastTok = toks.get(toks.size() - 1);
-      int tailStart = lastTok.getPosition() + lastTok.getOriginalText().length();
+      int tailStart = lastTok.getPosition() + lastTok.length();
       tail = text.substring(tailStart);
     }
 
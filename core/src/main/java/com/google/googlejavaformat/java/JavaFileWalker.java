@@ -0,0 +1,174 @@
+/*
+ * Copyright 2016 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.google.googlejavaformat.java;
+
+import com.google.common.collect.ImmutableList;
+
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.PathMatcher;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Finds the Java files under a set of directories. Directories are listed in parallel, and each
+ * file is reported as soon as it is found, so that the caller can start formatting it while the
+ * rest of the tree is still being walked. Symbolic links are not followed.
+ *
+ * <p>Include and exclude patterns use {@link FileSystems#getPathMatcher glob} syntax. A pattern
+ * containing a {@code '/'} is matched against paths relative to the directory being walked; any
+ * other pattern is matched against file and directory names alone, so {@code --exclude=generated}
+ * skips every directory named {@code generated}.
+ */
+final class JavaFileWalker {
+
+  /** Receives the results of a walk. Methods may be called concurrently from several threads. */
+  interface Visitor {
+    /** Called for each Java file found, with its size in bytes. */
+    void visitFile(Path file, long size);
+
+    /** Called for each file or directory that could not be read. */
+    void visitFileFailed(Path path, IOException e);
+  }
+
+  /** A glob pattern, matched against either the name or the relative path of a file. */
+  private static final class Glob {
+    final PathMatcher matcher;
+    final boolean matchName;
+
+    Glob(String pattern) {
+      this.matcher = FileSystems.getDefault().getPathMatcher("glob:" + pattern);
+      this.matchName = pattern.indexOf('/') == -1;
+    }
+
+    boolean matches(Path root, Path path) {
+      return matcher.matches(matchName ? path.getFileName() : root.relativize(path));
+    }
+  }
+
+  private final ImmutableList<Glob> includes;
+  private final ImmutableList<Glob> excludes;
+  private final int parallelism;
+
+  /**
+   * @param includes glob patterns a file must match one of to be visited; if empty, every Java file
+   *     is visited
+   * @param excludes glob patterns for files and directories to skip
+   * @param parallelism the number of directories to list at once
+   */
+  JavaFileWalker(List<String> includes, List<String> excludes, int parallelism) {
+    this.includes = globs(includes);
+    this.excludes = globs(excludes);
+    this.parallelism = parallelism;
+  }
+
+  private static ImmutableList<Glob> globs(List<String> patterns) {
+    ImmutableList.Builder<Glob> globs = ImmutableList.builder();
+    for (String pattern : patterns) {
+      globs.add(new Glob(pattern));
+    }
+    return globs.build();
+  }
+
+  /** Walks the given directories, returning once every file in them has been visited. */
+  void walk(List<Path> roots, Visitor visitor) {
+    List<WalkDirectory> tasks = new ArrayList<>();
+    for (Path root : roots) {
+      tasks.add(new WalkDirectory(root, root, visitor));
+    }
+    ForkJoinPool pool = new ForkJoinPool(parallelism);
+    try {
+      for (WalkDirectory task : tasks) {
+        pool.execute(task);
+      }
+      for (WalkDirectory task : tasks) {
+        task.join();
+      }
+    } finally {
+      pool.shutdown();
+    }
+  }
+
+  private boolean isExcluded(Path root, Path path) {
+    for (Glob exclude : excludes) {
+      if (exclude.matches(root, path)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  private boolean isIncluded(Path root, Path file) {
+    if (!file.getFileName().toString().endsWith(".java") || isExcluded(root, file)) {
+      return false;
+    }
+    if (includes.isEmpty()) {
+      return true;
+    }
+    for (Glob include : includes) {
+      if (include.matches(root, file)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /** Lists one directory, visiting its files and forking a task for each subdirectory. */
+  private final class WalkDirectory extends RecursiveAction {
+    private final Path root;
+    private final Path directory;
+    private final Visitor visitor;
+
+    WalkDirectory(Path root, Path directory, Visitor visitor) {
+      this.root = root;
+      this.directory = directory;
+      this.visitor = visitor;
+    }
+
+    @Override
+    protected void compute() {
+      List<WalkDirectory> subdirectories = new ArrayList<>();
+      try (DirectoryStream<Path> entries = Files.newDirectoryStream(directory)) {
+        for (Path entry : entries) {
+          BasicFileAttributes attributes;
+          try {
+            attributes =
+                Files.readAttributes(entry, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+          } catch (IOException e) {
+            visitor.visitFileFailed(entry, e);
+            continue;
+          }
+          if (attributes.isDirectory()) {
+            if (!isExcluded(root, entry)) {
+              subdirectories.add(new WalkDirectory(root, entry, visitor));
+            }
+          } else if (attributes.isRegularFile() && isIncluded(root, entry)) {
+            visitor.visitFile(entry, attributes.size());
+          }
+        }
+      } catch (IOException e) {
+        visitor.visitFileFailed(directory, e);
+      }
+      invokeAll(subdirectories);
+    }
+  }
+}
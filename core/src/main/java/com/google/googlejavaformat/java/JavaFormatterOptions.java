@@ -14,6 +14,8 @@
 
 package com.google.googlejavaformat.java;
 
+import com.google.common.base.MoreObjects;
+import com.google.common.base.Objects;
 import com.google.errorprone.annotations.Immutable;
 import com.google.googlejavaformat.java.javadoc.GoogleJavadocFormatter;
 
@@ -93,12 +95,43 @@ public class JavaFormatterOptions {
   private final JavadocFormatter javadocFormatter;
   private final Style style;
   private final SortImports sortImports;
+  private final FormatterListener listener;
+  private final int parallelLayoutMinTokens;
 
   public JavaFormatterOptions(
       JavadocFormatter javadocFormatter, Style style, SortImports sortImports) {
+    this(javadocFormatter, style, sortImports, FormatterListener.NONE, 0);
+  }
+
+  private JavaFormatterOptions(
+      JavadocFormatter javadocFormatter,
+      Style style,
+      SortImports sortImports,
+      FormatterListener listener,
+      int parallelLayoutMinTokens) {
     this.javadocFormatter = javadocFormatter;
     this.style = style;
     this.sortImports = sortImports;
+    this.listener = listener;
+    this.parallelLayoutMinTokens = parallelLayoutMinTokens;
+  }
+
+  /**
+   * Returns a copy of these options that reports the cost of each formatting phase to
+   * {@code listener}. The listener does not affect the formatted output.
+   */
+  public JavaFormatterOptions withListener(FormatterListener listener) {
+    return new JavaFormatterOptions(
+        javadocFormatter, style, sortImports, listener, parallelLayoutMinTokens);
+  }
+
+  /**
+   * Returns a copy of these options that lays out the members of a class in parallel, when the
+   * class spans at least {@code minTokens} tokens, or never if {@code minTokens} is 0. This does
+   * not affect the formatted output; it only helps with very large files.
+   */
+  public JavaFormatterOptions withParallelLayout(int minTokens) {
+    return new JavaFormatterOptions(javadocFormatter, style, sortImports, listener, minTokens);
   }
 
   /** Returns the Javadoc formatter. */
@@ -119,4 +152,50 @@ public class JavaFormatterOptions {
   public SortImports sortImports() {
     return sortImports;
   }
+
+  /** Returns the {@link FormatterListener}, {@link FormatterListener#NONE} by default. */
+  public FormatterListener listener() {
+    return listener;
+  }
+
+  /**
+   * Returns the size, in tokens, from which a class's members are laid out in parallel, or 0 for
+   * never, the default.
+   */
+  public int parallelLayoutMinTokens() {
+    return parallelLayoutMinTokens;
+  }
+
+  /**
+   * Options are equal if they produce the same output; the listener and parallel layout are not
+   * compared, since they do not affect the output.
+   */
+  @Override
+  public boolean equals(Object o) {
+    if (!(o instanceof JavaFormatterOptions)) {
+      return false;
+    }
+    JavaFormatterOptions that = (JavaFormatterOptions) o;
+    return javadocFormatter == that.javadocFormatter
+        && style == that.style
+        && sortImports == that.sortImports;
+  }
+
+  @Override
+  public int hashCode() {
+    return Objects.hashCode(javadocFormatter, style, sortImports);
+  }
+
+  /**
+   * Describes the options that affect the output, so the listener and parallel layout are omitted.
+   */
+  @Override
+  public String toString() {
+    return MoreObjects.toStringHelper(this)
+        .add("javadocFormatter", javadocFormatter)
+        .add("style", style)
+        .add("sortImports", sortImports)
+        .add("maxLineLength", maxLineLength())
+        .toString();
+  }
 }
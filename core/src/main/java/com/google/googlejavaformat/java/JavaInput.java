@@ -22,9 +22,8 @@ import com.google.common.base.Splitter;
 import com.google.common.base.Verify;
 import com.google.common.collect.DiscreteDomain;
 import com.google.common.collect.ImmutableList;
-import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.ImmutableSet;
-import com.google.common.collect.ImmutableSortedMap;
+import com.google.common.collect.Iterables;
 import com.google.common.collect.Range;
 import com.google.common.collect.RangeSet;
 import com.google.common.collect.TreeRangeSet;
@@ -36,11 +35,9 @@ import org.eclipse.jdt.core.compiler.ITerminalSymbols;
 import org.eclipse.jdt.core.compiler.InvalidInputException;
 import org.eclipse.jdt.core.dom.CompilationUnit;
 
-import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.List;
-import java.util.Map;
-import java.util.NavigableMap;
 
 /**
  * {@code JavaInput} extends {@link Input} to represent a Java input document.
@@ -58,90 +55,86 @@ public final class JavaInput extends Input {
    *
    * <p>A {@code /*} comment possibly contains newlines; a {@code //} comment does not contain the
    * terminating newline character, but is followed by a newline {@link Tok}.
+   *
+   * <p>A {@code Tok} is a cursor over one row of a {@link TokTable}; its text is not stored, but is
+   * taken from the input when it is asked for.
    */
   static final class Tok implements Input.Tok {
-    private final int index;
-    private final String originalText;
-    private final String text;
-    private final int position;
-    private final int columnI;
-    private final boolean isToken;
-    private final int id;
+    private final TokTable table;
+    private final int row;
 
     /**
      * The {@code Tok} constructor.
-     * @param index its index
-     * @param originalText its original text, before removing Unicode escapes
-     * @param text its text after removing Unicode escapes
-     * @param position its {@code 0}-origin position in the input
-     * @param columnI its {@code 0}-origin column number in the input
-     * @param isToken whether the {@code Tok} is a token
-     * @param id the token id as defined by {@link org.eclipse.jdt.core.compiler.ITerminalSymbols}
+     * @param table the table holding the {@code Tok}'s data
+     * @param row the {@code Tok}'s row in the table
      */
-    Tok(
-        int index,
-        String originalText,
-        String text,
-        int position,
-        int columnI,
-        boolean isToken,
-        int id) {
-      this.index = index;
-      this.originalText = originalText;
-      this.text = text;
-      this.position = position;
-      this.columnI = columnI;
-      this.isToken = isToken;
-      this.id = id;
+    private Tok(TokTable table, int row) {
+      this.table = table;
+      this.row = row;
     }
 
     @Override
     public int getIndex() {
-      return index;
+      return table.index[row];
     }
 
     @Override
     public String getText() {
-      return text;
+      return (table.flags[row] & TokTable.ESCAPED) != 0
+          ? table.unescapedText(row)
+          : getOriginalText();
     }
 
     @Override
     public String getOriginalText() {
-      return originalText;
+      int position = table.position[row];
+      int length = length();
+      if (length == 1) {
+        char c = table.source.charAt(position);
+        if (c < ONE_CHAR_STRINGS.length) {
+          return ONE_CHAR_STRINGS[c];
+        }
+      }
+      return table.source.substring(position, position + length);
+    }
+
+    @Override
+    public int length() {
+      return row + 1 < table.size ? table.position[row + 1] - table.position[row] : 0;
     }
 
     @Override
     public int getPosition() {
-      return position;
+      return table.position[row];
     }
 
     @Override
     public int getColumn() {
-      return columnI;
+      return table.column[row];
     }
 
     boolean isToken() {
-      return isToken;
+      return (table.flags[row] & TokTable.TOKEN) != 0;
     }
 
     @Override
     public boolean isNewline() {
-      return "\n".equals(text);
+      return (table.flags[row] & TokTable.NEWLINE) != 0;
     }
 
     @Override
     public boolean isSlashSlashComment() {
-      return text.startsWith("//");
+      return (table.flags[row] & TokTable.SLASH_SLASH) != 0;
     }
 
     @Override
     public boolean isSlashStarComment() {
-      return text.startsWith("/*");
+      return (table.flags[row] & TokTable.SLASH_STAR) != 0;
     }
 
     @Override
     public boolean isJavadocComment() {
-      return text.startsWith("/**");
+      return (table.flags[row] & TokTable.JAVADOC) != 0;
     }
 
     @Override
@@ -152,11 +145,11 @@ public final class JavaInput extends Input {
     @Override
     public String toString() {
       return MoreObjects.toStringHelper(this)
-          .add("index", index)
-          .add("text", text)
-          .add("position", position)
-          .add("columnI", columnI)
-          .add("isToken", isToken)
+          .add("index", getIndex())
+          .add("text", getText())
+          .add("position", getPosition())
+          .add("columnI", getColumn())
+          .add("isToken", isToken())
           .toString();
     }
 
@@ -165,7 +158,129 @@ public final class JavaInput extends Input {
      * {@link org.eclipse.jdt.core.compiler.ITerminalSymbols} for possible values.
      */
     public int id() {
-      return id;
+      return table.id[row];
+    }
+  }
+
+  /** Shared strings for the text of one-character ASCII {@link Tok}s, which are most of them. */
+  private static final String[] ONE_CHAR_STRINGS = new String[128];
+
+  static {
+    for (char c = 0; c < ONE_CHAR_STRINGS.length; c++) {
+      ONE_CHAR_STRINGS[c] = String.valueOf(c);
+    }
+  }
+
+  /**
+   * The {@link Tok}s of an input, stored as parallel arrays with one row per {@link Tok}. Each
+   * {@link Tok} ends where the next one starts, so only start positions are recorded. The text of a
+   * {@link Tok} is kept only if removing Unicode escapes changed it, which is rare; such rows are
+   * flagged {@link #ESCAPED}, and their texts are kept in a small table sorted by row.
+   */
+  static final class TokTable {
+    static final byte TOKEN = 1;
+    static final byte NEWLINE = 1 << 1;
+    static final byte SLASH_SLASH = 1 << 2;
+    static final byte SLASH_STAR = 1 << 3;
+    static final byte JAVADOC = 1 << 4;
+    static final byte ESCAPED = 1 << 5;
+
+    final String source;
+    int size = 0;
+    int[] position;
+    int[] column;
+    int[] index;
+    int[] id;
+    byte[] flags;
+    private int escapedCount = 0;
+    private int[] escapedRows = new int[0];
+    private String[] escapedTexts = new String[0];
+
+    TokTable(String source, int capacity) {
+      this.source = source;
+      position = new int[capacity];
+      column = new int[capacity];
+      index = new int[capacity];
+      id = new int[capacity];
+      flags = new byte[capacity];
+    }
+
+    /** Adds a row, and returns its row number. */
+    int add(int index, int position, int column, int id, int flags) {
+      if (size == this.position.length) {
+        int capacity = size + (size >> 1);
+        this.position = Arrays.copyOf(this.position, capacity);
+        this.column = Arrays.copyOf(this.column, capacity);
+        this.index = Arrays.copyOf(this.index, capacity);
+        this.id = Arrays.copyOf(this.id, capacity);
+        this.flags = Arrays.copyOf(this.flags, capacity);
+      }
+      this.position[size] = position;
+      this.column[size] = column;
+      this.index[size] = index;
+      this.id[size] = id;
+      this.flags[size] = (byte) flags;
+      return size++;
+    }
+
+    /**
+     * Records the text of a row whose original text contains Unicode escapes. Rows must be recorded
+     * in increasing order.
+     */
+    void setUnescapedText(int row, String text) {
+      if (escapedCount == escapedRows.length) {
+        int capacity = Math.max(4, escapedCount * 2);
+        escapedRows = Arrays.copyOf(escapedRows, capacity);
+        escapedTexts = Arrays.copyOf(escapedTexts, capacity);
+      }
+      escapedRows[escapedCount] = row;
+      escapedTexts[escapedCount++] = text;
+      flags[row] =
+          (byte)
+              (flags((flags[row] & TOKEN) != 0, text.toCharArray(), 0, text.length()) | ESCAPED);
+    }
+
+    /** Returns the text of an {@link #ESCAPED} row. */
+    String unescapedText(int row) {
+      return escapedTexts[Arrays.binarySearch(escapedRows, 0, escapedCount, row)];
+    }
+
+    /** Trims the arrays to the table's size. */
+    void trim() {
+      position = Arrays.copyOf(position, size);
+      column = Arrays.copyOf(column, size);
+      index = Arrays.copyOf(index, size);
+      id = Arrays.copyOf(id, size);
+      flags = Arrays.copyOf(flags, size);
+    }
+
+    /** Returns a {@link Tok} for each row. */
+    ImmutableList<Tok> toks() {
+      Tok[] toks = new Tok[size];
+      for (int row = 0; row < size; row++) {
+        toks[row] = new Tok(this, row);
+      }
+      return ImmutableList.copyOf(toks);
+    }
+
+    /**
+     * Computes the flags of a {@link Tok} from its text (after removing Unicode escapes).
+     */
+    static int flags(boolean isToken, char[] text, int offset, int length) {
+      int flags = isToken ? TOKEN : 0;
+      if (length == 1 && text[offset] == '\n') {
+        flags |= NEWLINE;
+      } else if (length >= 2 && text[offset] == '/') {
+        if (text[offset + 1] == '/') {
+          flags |= SLASH_SLASH;
+        } else if (text[offset + 1] == '*') {
+          flags |= SLASH_STAR;
+          if (length >= 3 && text[offset + 2] == '*') {
+            flags |= JAVADOC;
+          }
+        }
+      }
+      return flags;
     }
   }
 
@@ -234,8 +349,8 @@ public final class JavaInput extends Input {
 
   private final String filename;
   private final String text; // The input.
-  private int kN; // The number of numbered toks (tokens or comments), excluding the EOF.
-  private Map<Integer, Range<Integer>> kToI = null; // Map from token indices to line numbers.
+  private final int kN; // The number of numbered toks (tokens or comments), excluding the EOF.
+  private KToIJ kToI = null; // Map from token indices to line numbers.
 
   /*
    * The following lists record the sequential indices of the {@code Tok}s on each input line. (Only
@@ -245,9 +360,10 @@ public final class JavaInput extends Input {
    * output.
    */
 
-  private final ImmutableMap<Integer, Integer> positionToColumnMap; // Map Tok position to column.
+  private final TokTable tokTable; // The Toks for this input, including the EOF.
+  private final ImmutableList<Tok> toks; // The Toks for this input, including the EOF.
   private final ImmutableList<Token> tokens; // The Tokens for this input.
-  private final ImmutableSortedMap<Integer, Token> positionTokenMap; // Map position to Token.
+  private int[] tokenPositions = null; // The start positions of the Tokens, in order.
 
   /** Map from Tok index to the associated Token. */
   private final Token[] kToToken;
@@ -262,14 +378,12 @@ public final class JavaInput extends Input {
     this.text = checkNotNull(text);
     List<String> lines = NEWLINE_SPLITTER.splitToList(text);
     setLines(ImmutableList.copyOf(lines));
-    ImmutableList<Tok> toks = buildToks(text);
-    positionToColumnMap = makePositionToColumnMap(toks);
+    tokTable = buildTokTable(text);
+    toks = tokTable.toks();
+    // The EOF tok's index is the number of numbered toks before it.
+    kN = toks.isEmpty() ? 0 : toks.get(toks.size() - 1).getIndex();
+    computeRanges(toks);
     tokens = buildTokens(toks);
-    ImmutableSortedMap.Builder<Integer, Token> locationTokenMap = ImmutableSortedMap.naturalOrder();
-    for (Token token : tokens) {
-      locationTokenMap.put(JavaOutput.startPosition(token), token);
-    }
-    positionTokenMap = locationTokenMap.build();
 
     // adjust kN for EOF
     kToToken = new Token[kN + 1];
@@ -290,14 +404,6 @@ public final class JavaInput extends Input {
     }
   }
 
-  private static ImmutableMap<Integer, Integer> makePositionToColumnMap(List<Tok> toks) {
-    ImmutableMap.Builder<Integer, Integer> builder = ImmutableMap.builder();
-    for (Tok tok : toks) {
-      builder.put(tok.getPosition(), tok.getColumn());
-    }
-    return builder.build();
-  }
-
   /**
    * Get the input text.
    * @return the input text
@@ -308,20 +414,29 @@ public final class JavaInput extends Input {
   }
 
   @Override
-  public ImmutableMap<Integer, Integer> getPositionToColumnMap() {
-    return positionToColumnMap;
+  public int getTokColumn(int position) {
+    int row = Arrays.binarySearch(tokTable.position, position);
+    return row >= 0 ? tokTable.column[row] : -1;
+  }
+
+  /**
+   * Get the toks, including the final EOF tok. Empty if the input could not be lexed.
+   * @return the toks
+   */
+  ImmutableList<Tok> getToks() {
+    return toks;
   }
 
-  /** Lex the input and build the list of toks. */
-  private ImmutableList<Tok> buildToks(String text) throws FormatterException {
+  /** Lex the input and build the table of toks. */
+  private static TokTable buildTokTable(String text) throws FormatterException {
     try {
-      return buildToks(text, ImmutableSet.<Integer>of());
+      return buildTokTable(text, ImmutableSet.<Integer>of());
     } catch (InvalidInputException e) {
       // jdt's scanner elects not to produce error messages, so we don't either
       //
       // problems will get caught (again!) and reported (with error messages!)
       // during parsing
-      return ImmutableList.of();
+      return new TokTable(text, 0);
     }
   }
 
@@ -332,15 +447,22 @@ public final class JavaInput extends Input {
    * @param stopIds a set of Eclipse token names which should cause lexing to stop. If one of these
    *     is found, the returned list will include tokens up to but not including that token.
    */
-  ImmutableList<Tok> buildToks(String text, ImmutableSet<Integer> stopIds)
+  static ImmutableList<Tok> buildToks(String text, ImmutableSet<Integer> stopIds)
+      throws InvalidInputException, FormatterException {
+    return buildTokTable(text, stopIds).toks();
+  }
+
+  private static TokTable buildTokTable(String text, ImmutableSet<Integer> stopIds)
       throws InvalidInputException, FormatterException {
     stopIds =
         ImmutableSet.<Integer>builder().addAll(stopIds).add(ITerminalSymbols.TokenNameEOF).build();
-    kN = 0;
+    int kN = 0;
     IScanner scanner = ToolFactory.createScanner(true, true, true, "1.8");
-    scanner.setSource(text.toCharArray());
+    char[] chars = text.toCharArray();
+    scanner.setSource(chars);
     int textLength = text.length();
-    List<Tok> toks = new ArrayList<>();
+    // Most inputs have about one tok for every three characters.
+    TokTable table = new TokTable(text, Math.max(16, textLength / 3));
     int charI = 0;
     int columnI = 0;
     while (scanner.getCurrentTokenEndPosition() < textLength - 1) {
@@ -348,105 +470,102 @@ public final class JavaInput extends Input {
       if (stopIds.contains(tokenId)) {
         break;
       }
-      int charI0 = scanner.getCurrentTokenStartPosition();
-      // Get string, possibly with Unicode escapes.
-      String originalTokText = text.substring(charI0, scanner.getCurrentTokenEndPosition() + 1);
-      String tokText = new String(scanner.getCurrentTokenSource()); // Unicode escapes removed.
-      char tokText0 = tokText.charAt(0); // The token's first character.
-      final boolean isToken; // Is this tok a token?
-      final boolean isNumbered; // Is this tok numbered? (tokens and comments)
+      // The token's original text, possibly with Unicode escapes, is chars[charI, charI1).
+      charI = scanner.getCurrentTokenStartPosition();
+      int charI1 = scanner.getCurrentTokenEndPosition() + 1;
+      char[] tokText = scanner.getCurrentTokenSource(); // Unicode escapes removed.
+      int tokLength = tokText.length;
+      boolean escaped = !regionEquals(chars, charI, charI1, tokText);
+      char tokText0 = tokText[0]; // The token's first character.
+      int row0 = table.size; // The first row for this token.
       boolean extraNewline = false; // Extra newline at end?
-      List<String> strings = new ArrayList<>();
       if (Character.isWhitespace(tokText0)) {
-        isToken = false;
-        isNumbered = false;
-        boolean first = true;
-        for (String spaces : NEWLINE_SPLITTER.split(originalTokText)) {
-          if (!first) {
-            strings.add("\n");
-          }
-          if (!spaces.isEmpty()) {
-            strings.add(spaces);
+        // Newlines are toks of their own, separating maximal runs of other whitespace.
+        for (int i = charI; i < charI1; i++) {
+          if (chars[i] == '\n') {
+            if (charI < i) {
+              columnI = addTok(table, chars, -1, charI, i, columnI, tokenId, false);
+            }
+            columnI = addTok(table, chars, -1, i, i + 1, columnI, tokenId, false);
+            charI = i + 1;
           }
-          first = false;
         }
-      } else if (tokText.startsWith("'") || tokText.startsWith("\"")) {
-        isToken = true;
-        isNumbered = true;
-        strings.add(originalTokText);
-      } else if (tokText.startsWith("//") || tokText.startsWith("/*")) {
+        if (charI < charI1) {
+          columnI = addTok(table, chars, -1, charI, charI1, columnI, tokenId, false);
+        }
+      } else if (tokText0 == '\'' || tokText0 == '"') {
+        columnI = addTok(table, chars, kN++, charI, charI1, columnI, tokenId, true);
+      } else if (tokLength > 1 && tokText0 == '/' && (tokText[1] == '/' || tokText[1] == '*')) {
         // For compatibility with an earlier lexer, the newline after a // comment is its own tok.
-        if (tokText.startsWith("//") && originalTokText.endsWith("\n")) {
-          originalTokText = originalTokText.substring(0, originalTokText.length() - 1);
-          tokText = tokText.substring(0, tokText.length() - 1);
+        if (tokText[1] == '/' && chars[charI1 - 1] == '\n') {
+          charI1--;
+          tokLength--;
           extraNewline = true;
         }
-        isToken = false;
-        isNumbered = true;
-        strings.add(originalTokText);
+        columnI = addTok(table, chars, kN++, charI, charI1, columnI, tokenId, false);
       } else if (Character.isJavaIdentifierStart(tokText0)
           || Character.isDigit(tokText0)
-          || tokText0 == '.' && tokText.length() > 1 && Character.isDigit(tokText.charAt(1))) {
+          || tokText0 == '.' && tokLength > 1 && Character.isDigit(tokText[1])) {
         // Identifier, keyword, or numeric literal (a dot may begin a number, as in .2D).
-        isToken = true;
-        isNumbered = true;
-        strings.add(tokText);
+        columnI = addTok(table, chars, kN++, charI, charI1, columnI, tokenId, true);
+      } else if (tokLength == 1) {
+        columnI = addTok(table, chars, kN++, charI, charI1, columnI, tokenId, true);
       } else {
         // Other tokens ("+" or "++" or ">>" are broken into one-character toks, because ">>"
-        // cannot be lexed without syntactic knowledge. This implementation fails if the token
-        // contains Unicode escapes.
-        isToken = true;
-        isNumbered = true;
-        for (char c : tokText.toCharArray()) {
-          strings.add(String.valueOf(c));
+        // cannot be lexed without syntactic knowledge.
+        if (escaped) {
+          throw new FormatterException(
+              "Unicode escapes not allowed in whitespace or multi-character operators");
         }
-      }
-      if (strings.size() == 1) {
-        toks.add(
-            new Tok(
-                isNumbered ? kN++ : -1,
-                originalTokText,
-                tokText,
-                charI,
-                columnI,
-                isToken,
-                tokenId));
-        for (char c : originalTokText.toCharArray()) {
-          if (c == '\n') {
-            columnI = 0;
-          } else {
-            ++columnI;
-          }
-          ++charI;
+        for (int i = charI; i < charI1; i++) {
+          columnI = addTok(table, chars, kN++, i, i + 1, columnI, tokenId, true);
         }
-      } else {
-        if (strings.size() != 1 && !tokText.equals(originalTokText)) {
+      }
+      if (escaped) {
+        if (table.size != row0 + 1) {
           throw new FormatterException(
               "Unicode escapes not allowed in whitespace or multi-character operators");
         }
-        for (String str : strings) {
-          toks.add(new Tok(isNumbered ? kN++ : -1, str, str, charI, columnI, isToken, tokenId));
-          for (char c : str.toCharArray()) {
-            if (c == '\n') {
-              columnI = 0;
-            } else {
-              ++columnI;
-            }
-            ++charI;
-          }
-        }
+        table.setUnescapedText(row0, new String(tokText, 0, tokLength));
       }
+      charI = charI1;
       if (extraNewline) {
-        toks.add(new Tok(-1, "\n", "\n", charI, columnI, false, tokenId));
-        columnI = 0;
+        columnI = addTok(table, chars, -1, charI, charI + 1, columnI, tokenId, false);
         ++charI;
       }
     }
-    toks.add(
-        new Tok(kN++, "", "", charI, columnI, true, ITerminalSymbols.TokenNameEOF)); // EOF tok.
-    --kN; // Don't count EOF tok.
-    computeRanges(toks);
-    return ImmutableList.copyOf(toks);
+    table.add(kN, charI, columnI, ITerminalSymbols.TokenNameEOF, TokTable.TOKEN); // EOF tok.
+    table.trim();
+    return table;
+  }
+
+  /** Adds a row for the tok {@code chars[start, end)}, and returns the column following it. */
+  private static int addTok(
+      TokTable table,
+      char[] chars,
+      int index,
+      int start,
+      int end,
+      int columnI,
+      int id,
+      boolean isToken) {
+    table.add(index, start, columnI, id, TokTable.flags(isToken, chars, start, end - start));
+    for (int i = start; i < end; i++) {
+      columnI = chars[i] == '\n' ? 0 : columnI + 1;
+    }
+    return columnI;
+  }
+
+  private static boolean regionEquals(char[] chars, int start, int end, char[] region) {
+    if (end - start != region.length) {
+      return false;
+    }
+    for (int i = 0; i < region.length; i++) {
+      if (chars[start + i] != region[i]) {
+        return false;
+      }
+    }
+    return true;
   }
 
   private static ImmutableList<Token> buildTokens(List<Tok> toks) {
@@ -486,7 +605,9 @@ public final class JavaInput extends Input {
         }
         Tok nonTokenAfter = toks.get(k++);
         toksAfter.add(nonTokenAfter);
-        if (nonTokenAfter.getText().contains("\n")) {
+        // Only newlines and /* comments can contain a newline; don't copy out the text of others.
+        if (nonTokenAfter.isNewline()
+            || nonTokenAfter.isSlashStarComment() && nonTokenAfter.getText().contains("\n")) {
           break;
         }
       }
@@ -515,7 +636,7 @@ public final class JavaInput extends Input {
     if (kToI == null) {
       kToI = makeKToIJ(this, kN);
     }
-    return kToI.get(k).lowerEndpoint();
+    return kToI.lowerEndpoint(k);
   }
 
   /**
@@ -538,7 +659,7 @@ public final class JavaInput extends Input {
     if (kToI == null) {
       kToI = makeKToIJ(this, kN);
     }
-    return kToI.get(k).upperEndpoint() - 1;
+    return kToI.upperEndpoint(k) - 1;
   }
 
   /**
@@ -559,14 +680,9 @@ public final class JavaInput extends Input {
     if (length <= 0) {
       return Formatter.EMPTY_RANGE;
     }
-    NavigableMap<Integer, JavaInput.Token> map = getPositionTokenMap();
-    Map.Entry<Integer, JavaInput.Token> tokenEntryLo =
-        firstNonNull(map.floorEntry(offset), map.firstEntry());
-    Map.Entry<Integer, JavaInput.Token> tokenEntryHi =
-        firstNonNull(map.floorEntry(offset + length - 1), map.lastEntry());
-    return Range.closedOpen(
-        tokenEntryLo.getValue().getTok().getIndex(),
-        tokenEntryHi.getValue().getTok().getIndex() + 1);
+    Token tokenLo = firstNonNull(floorToken(offset), tokens.get(0));
+    Token tokenHi = firstNonNull(floorToken(offset + length - 1), Iterables.getLast(tokens));
+    return Range.closedOpen(tokenLo.getTok().getIndex(), tokenHi.getTok().getIndex() + 1);
   }
 
   Range<Integer> lineRangeToTokenRange(Range<Integer> lineRange) {
@@ -576,18 +692,18 @@ public final class JavaInput extends Input {
     }
     lineRange = lines.intersection(lineRange);
     int startLine = Math.max(0, lineRange.lowerEndpoint());
-    int start = getRange0s(startLine).lowerEndpoint();
+    int start = range0s.lowerEndpoint(startLine);
 
     while (start < 0 && lines.contains(startLine)) {
       startLine++;
-      start = getRange0s(startLine).lowerEndpoint();
+      start = range0s.lowerEndpoint(startLine);
     }
 
     int endLine = Math.min(lineRange.upperEndpoint() - 1, getLineCount() - 1);
-    int end = getRange1s(endLine).upperEndpoint();
+    int end = range1s.upperEndpoint(endLine);
     while (end < 0 && lines.contains(endLine)) {
       endLine--;
-      end = getRange1s(endLine).upperEndpoint();
+      end = range1s.upperEndpoint(endLine);
     }
 
     Verify.verify(start >= 0);
@@ -627,15 +743,38 @@ public final class JavaInput extends Input {
     return tokens;
   }
 
+  @Override
+  public Token floorToken(int position) {
+    int i = Arrays.binarySearch(tokenPositions(), position);
+    i = i >= 0 ? i : -(i + 1) - 1;
+    return i >= 0 ? tokens.get(i) : null;
+  }
+
+  @Override
+  public Token lowerToken(int position) {
+    return floorToken(position - 1);
+  }
+
+  @Override
+  public Token ceilingToken(int position) {
+    int i = Arrays.binarySearch(tokenPositions(), position);
+    i = i >= 0 ? i : -(i + 1);
+    return i < tokens.size() ? tokens.get(i) : null;
+  }
+
   /**
-   * Get the navigable map from position to {@link Token}. Used to look for tokens following a given
-   * one, and to implement the --offset and --length flags to reformat a character range in the
-   * input file.
-   * @return the navigable map from position to {@link Token}
+   * The start positions of the {@link Token}s, including leading whitespace. These are only needed
+   * to look up {@link Token}s by position, so they are computed when first needed.
    */
-  @Override
-  public NavigableMap<Integer, Token> getPositionTokenMap() {
-    return positionTokenMap;
+  private int[] tokenPositions() {
+    if (tokenPositions == null) {
+      int[] positions = new int[tokens.size()];
+      for (int i = 0; i < positions.length; i++) {
+        positions[i] = JavaOutput.startPosition(tokens.get(i));
+      }
+      tokenPositions = positions;
+    }
+    return tokenPositions;
   }
 
   @Override
@@ -3048,19 +3048,19 @@ public final class JavaInputAstVisitor extends ASTVisitor {
     for (int i = 0; i < n; i++) {
       (i % 2 == 0 ? firsts : seconds).add(arguments.get(i));
     }
-    Integer firstColumn0 = actualColumn(firsts.get(0));
-    if (firstColumn0 == null) {
+    int firstColumn0 = actualColumn(firsts.get(0));
+    if (firstColumn0 < 0) {
       return false;
     }
     for (int i = 1; i < n / 2; i++) {
-      Integer firstColumnI = actualColumn(firsts.get(i));
-      if (!firstColumn0.equals(firstColumnI)) {
+      int firstColumnI = actualColumn(firsts.get(i));
+      if (firstColumn0 != firstColumnI) {
         return false;
       }
     }
     for (int i = 0; i < n / 2; i++) {
-      Integer secondColumnI = actualColumn(seconds.get(i));
-      if (secondColumnI == null) {
+      int secondColumnI = actualColumn(seconds.get(i));
+      if (secondColumnI < 0) {
         return false;
       }
       if (!(firstColumn0 < secondColumnI)) {
@@ -3070,9 +3070,10 @@ public final class JavaInputAstVisitor extends ASTVisitor {
     return expressionsAreParallel(firsts, n / 2) && expressionsAreParallel(seconds, n / 4 + 1);
   }
 
-  private Integer actualColumn(Expression expression) {
-    Map<Integer, Integer> positionToColumnMap = builder.getInput().getPositionToColumnMap();
-    return positionToColumnMap.get(builder.actualStartColumn(expression.getStartPosition()));
+  private int actualColumn(Expression expression) {
+    return builder
+        .getInput()
+        .getTokColumn(builder.actualStartColumn(expression.getStartPosition()));
   }
 
   private static boolean expressionsAreParallel(List<Expression> expressions, int atLeastM) {
@@ -3420,11 +3421,10 @@ public final class JavaInputAstVisitor extends ASTVisitor {
   /** Does this {@link BodyDeclaration} have JavaDoc preceding it? */
   private boolean hasJavaDoc(BodyDeclaration bodyDeclaration) {
     int position = bodyDeclaration.getStartPosition();
-    Map.Entry<Integer, ? extends Input.Token> entry =
-        builder.getInput().getPositionTokenMap().ceilingEntry(position);
-    if (entry != null) {
-      for (Input.Tok tok : entry.getValue().getToksBefore()) {
-        if (tok.getText().startsWith("/**")) {
+    Input.Token token = builder.getInput().ceilingToken(position);
+    if (token != null) {
+      for (Input.Tok tok : token.getToksBefore()) {
+        if (tok.isJavadocComment()) {
           return true;
         }
       }
@@ -3433,11 +3433,7 @@ public final class JavaInputAstVisitor extends ASTVisitor {
   }
 
   private static Optional<? extends Input.Token> getNextToken(Input input, int position) {
-    Map.Entry<Integer, ? extends Input.Token> ceilingEntry =
-        input.getPositionTokenMap().ceilingEntry(position);
-    return ceilingEntry == null
-        ? Optional.<JavaInput.Token>absent()
-        : Optional.of(ceilingEntry.getValue());
+    return Optional.fromNullable(input.ceilingToken(position));
   }
 
   /**
@@ -15,6 +15,7 @@
 package com.google.googlejavaformat.java;
 
 import static com.google.common.base.MoreObjects.firstNonNull;
+import static com.google.common.base.Preconditions.checkElementIndex;
 
 import com.google.common.base.CharMatcher;
 import com.google.common.base.MoreObjects;
@@ -22,14 +23,18 @@ import com.google.common.collect.DiscreteDomain;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.Range;
 import com.google.common.collect.RangeSet;
-import com.google.common.collect.TreeRangeSet;
+import com.google.common.primitives.Ints;
 import com.google.googlejavaformat.CommentsHelper;
 import com.google.googlejavaformat.Input;
 import com.google.googlejavaformat.Input.Token;
 import com.google.googlejavaformat.OpsBuilder.BlankLineWanted;
 import com.google.googlejavaformat.Output;
 
+import java.io.IOException;
+import java.io.Writer;
+import java.util.AbstractList;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.HashMap;
@@ -60,13 +65,25 @@ public final class JavaOutput extends Output {
   private final Map<Integer, BlankLineWanted> blankLines = new HashMap<>(); // Info on blank lines.
   private final NavigableSet<Integer> partialFormatBoundaries = new TreeSet<>();
 
-  private final List<String> mutableLines = new ArrayList<>();
+  /*
+   * The output, as the lines ended so far, each followed by a newline, and then the current line.
+   * Line {@code j} starts at {@code lineStarts[j]}, and the current line at
+   * {@code lineStarts[lineCount]}. When streaming, only the current line is kept.
+   */
+  private char[] buffer = new char[256];
+  private int bufferLength = 0;
+  private int[] lineStarts = new int[64];
+  private int lineCount = 0;
+
   private final int kN; // The number of tokens or comments in the input, excluding the EOF.
   private int iLine = 0; // Closest corresponding line number on input.
   private int lastK = -1; // Last {@link Tok} index output.
   private int spacesPending = 0;
   private int newlinesPending = 0;
-  private StringBuilder lineBuilder = new StringBuilder();
+
+  private Writer writer = null; // If set by streamTo, lines are written here instead of kept.
+  private boolean wroteLine = false; // Whether a line has been written to the writer.
+  private IOException writeException = null; // The first failure to write to the writer.
 
   /**
    * {@code JavaOutput} constructor.
@@ -101,9 +118,9 @@ public final class JavaOutput extends Output {
       // Skip over input line we've passed.
       int iN = javaInput.getLineCount();
       while (iLine < iN
-          && (javaInput.getRange1s(iLine).isEmpty()
-              || javaInput.getRange1s(iLine).upperEndpoint() <= range.lowerEndpoint())) {
-        if (javaInput.getRanges(iLine).isEmpty()) {
+          // An empty range's upper endpoint is -1, so lines without toks are skipped too.
+          && javaInput.getRange1sUpperEndpoint(iLine) <= range.lowerEndpoint()) {
+        if (javaInput.getRangesLowerEndpoint(iLine) < 0) {
           // Skipped over a blank line.
           sawNewlines = true;
         }
@@ -131,54 +148,52 @@ public final class JavaOutput extends Output {
       boolean range0sSet = false;
       boolean rangesSet = false;
       int textN = text.length();
-      for (int i = 0; i < textN; i++) {
+      int i = 0;
+      while (i < textN) {
         char c = text.charAt(i);
         switch (c) {
           case ' ':
             ++spacesPending;
+            ++i;
             break;
           case '\n':
             spacesPending = 0;
             ++newlinesPending;
+            ++i;
             break;
           default:
             while (newlinesPending > 0) {
-              mutableLines.add(lineBuilder.toString());
-              lineBuilder = new StringBuilder();
+              endLine();
               rangesSet = false;
               --newlinesPending;
             }
-            while (spacesPending > 0) {
-              lineBuilder.append(' ');
-              --spacesPending;
+            // Copy the pending spaces and the run of text up to the next space or newline at once.
+            int end = i + 1;
+            while (end < textN && text.charAt(end) != ' ' && text.charAt(end) != '\n') {
+              ++end;
             }
-            lineBuilder.append(c);
-            if (!range.isEmpty()) {
+            ensureCapacity(bufferLength + spacesPending + end - i);
+            Arrays.fill(buffer, bufferLength, bufferLength + spacesPending, ' ');
+            bufferLength += spacesPending;
+            spacesPending = 0;
+            text.getChars(i, end, buffer, bufferLength);
+            bufferLength += end - i;
+            i = end;
+            if (!range.isEmpty() && writer == null) {
               if (!range0sSet) {
-                if (!range.isEmpty()) {
-                  while (range0s.size() <= mutableLines.size()) {
-                    range0s.add(Formatter.EMPTY_RANGE);
-                  }
-                  range0s.set(mutableLines.size(), union(range0s.get(mutableLines.size()), range));
-                  range0sSet = true;
-                }
+                range0s.add(lineCount, range.lowerEndpoint(), range.upperEndpoint());
+                range0sSet = true;
               }
               if (!rangesSet) {
-                while (ranges.size() <= mutableLines.size()) {
-                  ranges.add(Formatter.EMPTY_RANGE);
-                }
-                ranges.set(mutableLines.size(), union(ranges.get(mutableLines.size()), range));
+                ranges.add(lineCount, range.lowerEndpoint(), range.upperEndpoint());
                 rangesSet = true;
               }
             }
         }
       }
       // TODO(jdd): Move others down here. Use common method for these.
-      if (!range.isEmpty()) {
-        while (range1s.size() <= mutableLines.size()) {
-          range1s.add(Formatter.EMPTY_RANGE);
-        }
-        range1s.set(mutableLines.size(), union(range1s.get(mutableLines.size()), range));
+      if (!range.isEmpty() && writer == null) {
+        range1s.add(lineCount, range.lowerEndpoint(), range.upperEndpoint());
       }
     }
     if (!range.isEmpty()) {
@@ -191,27 +206,114 @@ public final class JavaOutput extends Output {
     spacesPending = indent;
   }
 
+  /** Ensures the buffer can hold {@code length} characters. */
+  private void ensureCapacity(int length) {
+    if (buffer.length < length) {
+      buffer = Arrays.copyOf(buffer, Math.max(length, 2 * buffer.length));
+    }
+  }
+
+  /** Ends the current line, keeping it, or writing it if streaming. */
+  private void endLine() {
+    if (writer == null) {
+      ensureCapacity(bufferLength + 1);
+      buffer[bufferLength++] = '\n';
+      if (++lineCount == lineStarts.length) {
+        lineStarts = Arrays.copyOf(lineStarts, 2 * lineStarts.length);
+      }
+      lineStarts[lineCount] = bufferLength;
+    } else {
+      // Blank lines before the first line are not part of the formatted output.
+      if (wroteLine || bufferLength > 0) {
+        writeLine();
+      }
+    }
+  }
+
+  /** Writes the current line and a newline to the writer, and starts a new line. */
+  private void writeLine() {
+    ensureCapacity(bufferLength + 1);
+    buffer[bufferLength++] = '\n';
+    wroteLine = true;
+    if (writeException == null) {
+      try {
+        writer.write(buffer, 0, bufferLength);
+      } catch (IOException e) {
+        writeException = e;
+      }
+    }
+    bufferLength = 0;
+  }
+
+  /**
+   * Stream the output to a {@link Writer} as it is appended, instead of keeping its lines. This
+   * must be called before anything is appended. It writes the same text as applying the
+   * replacements for the whole input, without building the list of lines or computing the
+   * replacements: the input before the line of the first tok, then each output line. A streamed
+   * {@code JavaOutput} must be finished with {@link #flushStream}, and cannot compute
+   * replacements.
+   */
+  void streamTo(Writer writer) throws IOException {
+    String text = javaInput.getText();
+    // The replacement for the whole input starts at the beginning of the first tok's line.
+    int start = 0;
+    for (JavaInput.Tok tok : javaInput.getToks()) {
+      if (tok.getIndex() == 0) {
+        start = tok.getPosition();
+        break;
+      }
+    }
+    while (start > 0
+        && text.charAt(start - 1) != '\n'
+        && CharMatcher.whitespace().matches(text.charAt(start - 1))) {
+      start--;
+    }
+    writer.write(text, 0, start);
+    this.writer = writer;
+  }
+
+  /**
+   * Flush any incomplete last line to the {@link Writer} given to {@link #streamTo}.
+   *
+   * @throws IOException if writing any of the output failed
+   */
+  void flushStream() throws IOException {
+    // The output always ends with a newline, even if it has no lines.
+    if (bufferLength > 0 || !wroteLine) {
+      writeLine();
+    }
+    if (writeException != null) {
+      throw writeException;
+    }
+  }
+
   /** Flush any incomplete last line, then add the EOF token into our data structures. */
   void flush() {
-    String lastLine = lineBuilder.toString();
-    if (!lastLine.isEmpty()) {
-      mutableLines.add(lastLine);
-    }
-    int jN = mutableLines.size();
-    Range<Integer> eofRange = Range.closedOpen(kN, kN + 1);
-    while (range0s.size() < jN) {
-      range0s.add(Formatter.EMPTY_RANGE);
+    if (bufferLength > lineStarts[lineCount]) {
+      endLine();
     }
-    range0s.add(eofRange);
-    while (ranges.size() < jN) {
-      ranges.add(Formatter.EMPTY_RANGE);
+    int jN = lineCount;
+    range0s.padTo(jN);
+    range0s.append(kN, kN + 1);
+    ranges.padTo(jN);
+    ranges.append(kN, kN + 1);
+    range1s.padTo(jN);
+    range1s.append(kN, kN + 1);
+    setLines(new Lines());
+  }
+
+  /** The lines of the output, each made into a {@link String} when it is asked for. */
+  private final class Lines extends AbstractList<String> {
+    @Override
+    public String get(int j) {
+      checkElementIndex(j, lineCount);
+      return new String(buffer, lineStarts[j], lineStarts[j + 1] - 1 - lineStarts[j]);
     }
-    ranges.add(eofRange);
-    while (range1s.size() < jN) {
-      range1s.add(Formatter.EMPTY_RANGE);
+
+    @Override
+    public int size() {
+      return lineCount;
     }
-    range1s.add(eofRange);
-    setLines(ImmutableList.copyOf(mutableLines));
   }
 
   // The following methods can be used after the Output has been built.
@@ -223,146 +325,199 @@ public final class JavaOutput extends Output {
 
   /**
    * Emit a list of {@link Replacement}s to convert from input to output.
+   *
+   * <p>The token ranges are expanded to re-formattable boundaries and joined in a single forward
+   * sweep over the ranges and the boundaries, so the cost is linear in the output and the number
+   * of ranges.
+   *
    * @return a list of {@link Replacement}s, sorted by start index, without overlaps
    */
   public ImmutableList<Replacement> getFormatReplacements(RangeSet<Integer> iRangeSet0) {
     ImmutableList.Builder<Replacement> result = ImmutableList.builder();
-    Map<Integer, Range<Integer>> kToJ = JavaOutput.makeKToIJ(this, kN);
-
-    // Expand the token ranges to align with re-formattable boundaries.
-    RangeSet<Integer> breakableRanges = TreeRangeSet.create();
-    RangeSet<Integer> iRangeSet = iRangeSet0.subRangeSet(Range.closed(0, javaInput.getkN()));
-    for (Range<Integer> iRange : iRangeSet.asRanges()) {
-      breakableRanges.add(expandToBreakableRegions(iRange.canonical(DiscreteDomain.integers())));
+    KToIJ kToJ = JavaOutput.makeKToIJ(this, kN);
+    int[] boundaries = Ints.toArray(partialFormatBoundaries);
+    StringBuilder replacement = new StringBuilder();
+
+    // Expand the token ranges to align with re-formattable boundaries, joining those that meet.
+    int floor = 0; // The last boundary at or before the start of the range, if any.
+    int higher = 0; // The first boundary after the end of the range.
+    int loTok = -1;
+    int hiTok = -1;
+    for (Range<Integer> iRange0 : iRangeSet0.subRangeSet(Range.closed(0, kN)).asRanges()) {
+      Range<Integer> iRange = iRange0.canonical(DiscreteDomain.integers());
+      int lo = iRange.lowerEndpoint();
+      int hi = iRange.upperEndpoint();
+      while (floor + 1 < boundaries.length && boundaries[floor + 1] <= lo) {
+        floor++;
+      }
+      while (higher < boundaries.length && boundaries[higher] < hi) {
+        higher++;
+      }
+      int expandedLo = boundaries[floor];
+      int expandedHi =
+          higher < boundaries.length ? boundaries[higher] : boundaries[boundaries.length - 1] + 1;
+      if (expandedLo <= hiTok) {
+        hiTok = Math.max(hiTok, expandedHi);
+        continue;
+      }
+      if (loTok < hiTok) {
+        result.add(makeReplacement(kToJ, loTok, hiTok, replacement));
+      }
+      loTok = expandedLo;
+      hiTok = expandedHi;
     }
+    if (loTok < hiTok) {
+      result.add(makeReplacement(kToJ, loTok, hiTok, replacement));
+    }
+    return result.build();
+  }
 
-    // Construct replacements for each reformatted region.
-    for (Range<Integer> range : breakableRanges.asRanges()) {
-
-      Input.Tok startTok = startTok(javaInput.getToken(range.lowerEndpoint()));
-      Input.Tok endTok = endTok(javaInput.getToken(range.upperEndpoint() - 1));
-
-      // Add all output lines in the given token range to the replacement.
-      StringBuilder replacement = new StringBuilder();
-
-      boolean needsBreakBefore = false;
-      int replaceFrom = startTok.getPosition();
-      while (replaceFrom > 0) {
-        char previous = javaInput.getText().charAt(replaceFrom - 1);
-        if (previous == '\n') {
-          break;
-        }
-        if (CharMatcher.whitespace().matches(previous)) {
-          replaceFrom--;
-          continue;
-        }
-        needsBreakBefore = true;
+  /**
+   * Construct the replacement for the reformatted region of tokens {@code [loTok, hiTok)}.
+   *
+   * @param replacement a scratch buffer for the replacement text
+   */
+  private Replacement makeReplacement(
+      KToIJ kToJ, int loTok, int hiTok, StringBuilder replacement) {
+    String text = javaInput.getText();
+    Input.Tok startTok = startTok(javaInput.getToken(loTok));
+    Input.Tok endTok = endTok(javaInput.getToken(hiTok - 1));
+
+    // Add all output lines in the given token range to the replacement.
+    replacement.setLength(0);
+
+    boolean needsBreakBefore = false;
+    int replaceFrom = startTok.getPosition();
+    while (replaceFrom > 0) {
+      char previous = text.charAt(replaceFrom - 1);
+      if (previous == '\n') {
         break;
       }
-
-      if (needsBreakBefore) {
-        replacement.append('\n');
+      if (CharMatcher.whitespace().matches(previous)) {
+        replaceFrom--;
+        continue;
       }
+      needsBreakBefore = true;
+      break;
+    }
 
-      boolean first = true;
-      int i;
-      for (i = kToJ.get(startTok.getIndex()).lowerEndpoint();
-          i < kToJ.get(endTok.getIndex()).upperEndpoint();
-          i++) {
-        // It's possible to run out of output lines (e.g. if the input ended with
-        // multiple trailing newlines).
-        if (i < getLineCount()) {
-          if (first) {
-            first = false;
-          } else {
-            replacement.append('\n');
-          }
-          replacement.append(getLine(i));
-        }
-      }
+    if (needsBreakBefore) {
       replacement.append('\n');
+    }
 
-      String trailingLine = i < getLineCount() ? getLine(i) : null;
-
-      int replaceTo =
-          Math.min(endTok.getPosition() + endTok.getText().length(), javaInput.getText().length());
-      // If the formatted ranged ended in the trailing trivia of the last token before EOF,
-      // format all the way up to EOF to deal with trailing whitespace correctly.
-      if (endTok.getIndex() == javaInput.getkN() - 1) {
-        replaceTo = javaInput.getText().length();
-      }
+    // The output lines are newline-separated in the buffer, so they are copied at once.
+    int j0 = kToJ.lowerEndpoint(startTok.getIndex());
+    int j1 = kToJ.upperEndpoint(endTok.getIndex());
+    // It's possible to run out of output lines (e.g. if the input ended with
+    // multiple trailing newlines).
+    int jEnd = Math.min(j1, lineCount);
+    if (j0 < jEnd) {
+      replacement.append(buffer, lineStarts[j0], lineStarts[jEnd] - 1 - lineStarts[j0]);
+    }
+    replacement.append('\n');
+    int trailingLine = Math.max(j0, j1);
+
+    int replaceTo = Math.min(endTok.getPosition() + endTok.length(), text.length());
+    // If the formatted ranged ended in the trailing trivia of the last token before EOF,
+    // format all the way up to EOF to deal with trailing whitespace correctly.
+    if (endTok.getIndex() == javaInput.getkN() - 1) {
+      replaceTo = text.length();
+    }
 
-      // Expand the partial formatting range to include non-breaking trailing
-      // whitespace. If the range ultimately ends in a newline, then preserve
-      // whatever original text was on the next line (i.e. don't re-indent
-      // the next line after the reformatted range). However, if the partial
-      // formatting range doesn't end in a newline, then break and re-indent.
-      boolean reIndent = true;
-      while (replaceTo < javaInput.getText().length()) {
-        char endChar = javaInput.getText().charAt(replaceTo);
-        if (endChar == '\n') {
-          reIndent = false;
-          replaceTo++;
-          break;
-        }
-        if (CharMatcher.whitespace().matches(endChar)) {
-          replaceTo++;
-          continue;
-        }
+    // Expand the partial formatting range to include non-breaking trailing
+    // whitespace. If the range ultimately ends in a newline, then preserve
+    // whatever original text was on the next line (i.e. don't re-indent
+    // the next line after the reformatted range). However, if the partial
+    // formatting range doesn't end in a newline, then break and re-indent.
+    boolean reIndent = true;
+    while (replaceTo < text.length()) {
+      char endChar = text.charAt(replaceTo);
+      if (endChar == '\n') {
+        reIndent = false;
+        replaceTo++;
         break;
       }
-      if (reIndent && trailingLine != null) {
-        int idx = CharMatcher.whitespace().negate().indexIn(trailingLine);
-        if (idx > 0) {
-          replacement.append(trailingLine, 0, idx);
-        }
+      if (CharMatcher.whitespace().matches(endChar)) {
+        replaceTo++;
+        continue;
+      }
+      break;
+    }
+    if (reIndent && trailingLine < lineCount) {
+      // Copy the indentation of the trailing line.
+      int start = lineStarts[trailingLine];
+      int end = lineStarts[trailingLine + 1] - 1;
+      int idx = start;
+      while (idx < end && CharMatcher.whitespace().matches(buffer[idx])) {
+        idx++;
+      }
+      if (idx < end) {
+        replacement.append(buffer, start, idx - start);
       }
-
-      result.add(Replacement.create(replaceFrom, replaceTo, replacement.toString()));
     }
 
-    return result.build();
+    return Replacement.create(replaceFrom, replaceTo, replacement.toString());
   }
 
   /**
-   * Expand a token range to start and end on acceptable boundaries for re-formatting.
+   * Applies replacements to a string in a single pass, copying the text between them.
    *
-   * @param iRange the {@link Range} of tokens
-   * @return the expanded token range
+   * @param input the string
+   * @param replacements the {@link Replacement}s, without overlaps; they are sorted by index first
+   *     if they are not already, and insertions go before a replacement at the same index
+   * @return the string with the replacements applied
+   * @throws IllegalArgumentException if two of the replacements overlap
    */
-  private Range<Integer> expandToBreakableRegions(Range<Integer> iRange) {
-    // The original line range.
-    int loTok = iRange.lowerEndpoint();
-    int hiTok = iRange.upperEndpoint() - 1;
-
-    // Expand the token indices to formattable boundaries (e.g. edges of statements).
-    loTok = firstNonNull(partialFormatBoundaries.floor(loTok), partialFormatBoundaries.first());
-    hiTok = firstNonNull(partialFormatBoundaries.higher(hiTok), partialFormatBoundaries.last() + 1);
-
-    return Range.closedOpen(loTok, hiTok);
-  }
-
   public static String applyReplacements(String input, List<Replacement> replacements) {
-    replacements = new ArrayList<>(replacements);
-    Collections.sort(
-        replacements,
-        new Comparator<Replacement>() {
-          @Override
-          public int compare(Replacement o1, Replacement o2) {
-            return Integer.compare(
-                o2.getReplaceRange().lowerEndpoint(), o1.getReplaceRange().lowerEndpoint());
-          }
-        });
-    StringBuilder writer = new StringBuilder(input);
+    if (!isSorted(replacements)) {
+      replacements = new ArrayList<>(replacements);
+      Collections.sort(replacements, BY_RANGE);
+    }
+    int length = input.length();
+    for (Replacement replacement : replacements) {
+      Range<Integer> range = replacement.getReplaceRange();
+      length +=
+          replacement.getReplacementString().length()
+              - (range.upperEndpoint() - range.lowerEndpoint());
+    }
+    StringBuilder writer = new StringBuilder(length);
+    int copied = 0; // The input before this has been copied or replaced.
     for (Replacement replacement : replacements) {
-      writer.replace(
-          replacement.getReplaceRange().lowerEndpoint(),
-          replacement.getReplaceRange().upperEndpoint(),
-          replacement.getReplacementString());
+      Range<Integer> range = replacement.getReplaceRange();
+      if (range.lowerEndpoint() < copied) {
+        throw new IllegalArgumentException("overlapping replacements at " + range);
+      }
+      writer.append(input, copied, range.lowerEndpoint());
+      writer.append(replacement.getReplacementString());
+      copied = range.upperEndpoint();
     }
+    writer.append(input, copied, input.length());
     return writer.toString();
   }
 
+  private static final Comparator<Replacement> BY_RANGE =
+      new Comparator<Replacement>() {
+        @Override
+        public int compare(Replacement o1, Replacement o2) {
+          Range<Integer> r1 = o1.getReplaceRange();
+          Range<Integer> r2 = o2.getReplaceRange();
+          int result = Integer.compare(r1.lowerEndpoint(), r2.lowerEndpoint());
+          return result != 0 ? result : Integer.compare(r1.upperEndpoint(), r2.upperEndpoint());
+        }
+      };
+
+  /** Whether the replacements are already in the order they are applied in. */
+  private static boolean isSorted(List<Replacement> replacements) {
+    Replacement last = null;
+    for (Replacement replacement : replacements) {
+      if (last != null && BY_RANGE.compare(last, replacement) > 0) {
+        return false;
+      }
+      last = replacement;
+    }
+    return true;
+  }
+
   /** The earliest position of any Tok in the Token, including leading whitespace. */
   public static int startPosition(Token token) {
     int min = token.getTok().getPosition();
@@ -397,10 +552,6 @@ public final class JavaOutput extends Output {
     return text.startsWith("//") || text.startsWith("/*");
   }
 
-  private static Range<Integer> union(Range<Integer> x, Range<Integer> y) {
-    return x.isEmpty() ? y : y.isEmpty() ? x : x.span(y).canonical(DiscreteDomain.integers());
-  }
-
   @Override
   public String toString() {
     return MoreObjects.toStringHelper(this)
@@ -0,0 +1,237 @@
+/*
+ * Copyright 2016 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.google.googlejavaformat.java;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Just enough JSON for the {@code --batch} protocol: parsing one value per line, and quoting
+ * strings for output. Objects become {@link Map}s, arrays {@link List}s, numbers {@link Long}s or
+ * {@link Double}s, and {@code null} becomes {@code null}.
+ */
+final class Json {
+
+  private final String text;
+  private int pos;
+
+  private Json(String text) {
+    this.text = text;
+  }
+
+  /** Parses a single JSON value, which must be the whole of {@code text} apart from whitespace. */
+  static Object parse(String text) {
+    Json json = new Json(text);
+    Object value = json.value();
+    json.skipWhitespace();
+    if (json.pos != text.length()) {
+      throw json.error("unexpected trailing characters");
+    }
+    return value;
+  }
+
+  /** Returns {@code s} as a JSON string literal. */
+  static String quote(String s) {
+    StringBuilder sb = new StringBuilder(s.length() + 2).append('"');
+    for (int i = 0; i < s.length(); i++) {
+      char c = s.charAt(i);
+      switch (c) {
+        case '"':
+          sb.append("\\\"");
+          break;
+        case '\\':
+          sb.append("\\\\");
+          break;
+        case '\n':
+          sb.append("\\n");
+          break;
+        case '\r':
+          sb.append("\\r");
+          break;
+        case '\t':
+          sb.append("\\t");
+          break;
+        default:
+          if (c < 0x20) {
+            sb.append(String.format("\\u%04x", (int) c));
+          } else {
+            sb.append(c);
+          }
+      }
+    }
+    return sb.append('"').toString();
+  }
+
+  private IllegalArgumentException error(String message) {
+    return new IllegalArgumentException(message + " at offset " + pos);
+  }
+
+  private void skipWhitespace() {
+    while (pos < text.length() && " \t\r\n".indexOf(text.charAt(pos)) != -1) {
+      pos++;
+    }
+  }
+
+  private void expect(char c) {
+    skipWhitespace();
+    if (pos >= text.length() || text.charAt(pos) != c) {
+      throw error("expected '" + c + "'");
+    }
+    pos++;
+  }
+
+  /** Consumes {@code c} if it is the next non-whitespace character. */
+  private boolean consume(char c) {
+    skipWhitespace();
+    if (pos < text.length() && text.charAt(pos) == c) {
+      pos++;
+      return true;
+    }
+    return false;
+  }
+
+  private Object value() {
+    skipWhitespace();
+    if (pos >= text.length()) {
+      throw error("expected a value");
+    }
+    char c = text.charAt(pos);
+    switch (c) {
+      case '{':
+        return object();
+      case '[':
+        return array();
+      case '"':
+        return string();
+      default:
+        if (text.startsWith("true", pos)) {
+          pos += 4;
+          return true;
+        }
+        if (text.startsWith("false", pos)) {
+          pos += 5;
+          return false;
+        }
+        if (text.startsWith("null", pos)) {
+          pos += 4;
+          return null;
+        }
+        return number();
+    }
+  }
+
+  private Map<String, Object> object() {
+    expect('{');
+    Map<String, Object> object = new LinkedHashMap<>();
+    if (consume('}')) {
+      return object;
+    }
+    do {
+      skipWhitespace();
+      String key = string();
+      expect(':');
+      object.put(key, value());
+    } while (consume(','));
+    expect('}');
+    return object;
+  }
+
+  private List<Object> array() {
+    expect('[');
+    List<Object> array = new ArrayList<>();
+    if (consume(']')) {
+      return array;
+    }
+    do {
+      array.add(value());
+    } while (consume(','));
+    expect(']');
+    return array;
+  }
+
+  private String string() {
+    if (pos >= text.length() || text.charAt(pos) != '"') {
+      throw error("expected a string");
+    }
+    pos++;
+    StringBuilder sb = new StringBuilder();
+    while (true) {
+      if (pos >= text.length()) {
+        throw error("unterminated string");
+      }
+      char c = text.charAt(pos++);
+      if (c == '"') {
+        return sb.toString();
+      }
+      if (c != '\\') {
+        sb.append(c);
+        continue;
+      }
+      if (pos >= text.length()) {
+        throw error("unterminated string");
+      }
+      char escape = text.charAt(pos++);
+      switch (escape) {
+        case 'b':
+          sb.append('\b');
+          break;
+        case 'f':
+          sb.append('\f');
+          break;
+        case 'n':
+          sb.append('\n');
+          break;
+        case 'r':
+          sb.append('\r');
+          break;
+        case 't':
+          sb.append('\t');
+          break;
+        case 'u':
+          if (pos + 4 > text.length()) {
+            throw error("bad unicode escape");
+          }
+          try {
+            sb.append((char) Integer.parseInt(text.substring(pos, pos + 4), 16));
+          } catch (NumberFormatException e) {
+            throw error("bad unicode escape");
+          }
+          pos += 4;
+          break;
+        default:
+          sb.append(escape); // '"', '\\' and '/'
+      }
+    }
+  }
+
+  private Number number() {
+    int start = pos;
+    while (pos < text.length() && "+-0123456789.eE".indexOf(text.charAt(pos)) != -1) {
+      pos++;
+    }
+    String number = text.substring(start, pos);
+    try {
+      if (number.indexOf('.') == -1 && number.indexOf('e') == -1 && number.indexOf('E') == -1) {
+        return Long.parseLong(number);
+      }
+      return Double.parseDouble(number);
+    } catch (NumberFormatException e) {
+      pos = start;
+      throw error("expected a value");
+    }
+  }
+}
@@ -17,11 +17,13 @@ package com.google.googlejavaformat.java;
 import static java.nio.charset.StandardCharsets.UTF_8;
 
 import com.google.common.base.Splitter;
+import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ObjectArrays;
 import com.google.common.collect.Range;
 import com.google.common.collect.RangeSet;
 import com.google.common.collect.TreeRangeSet;
 import com.google.common.io.ByteStreams;
+import com.google.common.primitives.Ints;
 import com.google.googlejavaformat.java.JavaFormatterOptions.JavadocFormatter;
 import com.google.googlejavaformat.java.JavaFormatterOptions.SortImports;
 
@@ -30,28 +32,33 @@ import com.beust.jcommander.Parameter;
 import com.beust.jcommander.ParameterException;
 import com.beust.jcommander.Parameters;
 
+import java.io.BufferedReader;
 import java.io.IOError;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InputStreamReader;
 import java.io.OutputStreamWriter;
 import java.io.PrintWriter;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.concurrent.ExecutionException;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
-import java.util.concurrent.Future;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 /**
  * The main class for the Java formatter CLI.
  */
 public final class Main {
-  private static final int MAX_THREADS = 20;
+  /** The number of bytes of input that may be read but not yet written back or emitted. */
+  private static final int MAX_BUFFERED_BYTES = 64 << 20;
   private static final Splitter COMMA_SPLITTER = Splitter.on(',');
   private static final Splitter COLON_SPLITTER = Splitter.on(':');
 
@@ -63,6 +70,26 @@ public final class Main {
     )
     boolean iFlag = false;
 
+    @Parameter(
+      names = {"--dry-run", "-dry-run", "-n"},
+      description = "Print the paths of the files whose formatting would change, and nothing else."
+    )
+    boolean dryRunFlag = false;
+
+    @Parameter(
+      names = {"--set-exit-if-changed", "-set-exit-if-changed"},
+      description = "Return exit code 1 if any file's formatting changed."
+    )
+    boolean setExitIfChangedFlag = false;
+
+    @Parameter(
+      names = {"--fail-fast", "-fail-fast"},
+      description =
+          "Stop at the first file whose formatting changed; requires --dry-run or "
+              + "--set-exit-if-changed."
+    )
+    boolean failFastFlag = false;
+
     @Parameter(
       names = {"--lines", "-lines", "--line", "-line"},
       description = "Line range(s) to format, like 5:10 (1-based; default is all)."
@@ -109,12 +136,60 @@ public final class Main {
     )
     String sortImportsFlag = "";
 
+    @Parameter(
+      names = {"--threads", "-threads"},
+      description = "Number of files to format at once (default is the number of processors)."
+    )
+    int threadsFlag = 0;
+
+    @Parameter(
+      names = {"--parallel-layout", "-parallel-layout"},
+      description =
+          "Lay out the members of classes of at least this many tokens in parallel, for very "
+              + "large files (default is never)."
+    )
+    int parallelLayoutFlag = 0;
+
+    @Parameter(
+      names = {"--cache-dir", "-cache-dir"},
+      description = "Directory to cache formatting results in, to skip unchanged files next time."
+    )
+    String cacheDirFlag = null;
+
+    @Parameter(
+      names = {"--profile", "-profile"},
+      description =
+          "Print a breakdown of the time and memory spent in each formatting phase, "
+              + "and of how well the formatting threads were used."
+    )
+    boolean profileFlag = false;
+
     // TODO(eaftan): clang-format formats stdin -> stdout when no options are passed.  We should
     // match that behavior.
     @Parameter(names = "-", description = "Format stdin -> stdout.")
     boolean stdinStdoutFlag = false;
 
-    @Parameter(description = "file(s)")
+    @Parameter(
+      names = {"--batch", "-batch"},
+      description =
+          "Read the files to format, each with its own ranges, from stdin as JSON lines, like "
+              + "{\"file\": \"A.java\", \"lines\": [\"5:10\"], \"offsets\": [[0, 4]]}."
+    )
+    boolean batchFlag = false;
+
+    @Parameter(
+      names = {"--include", "-include"},
+      description = "Glob pattern for the files to format in directories (default is all)."
+    )
+    final List<String> includeFlags = new ArrayList<>();
+
+    @Parameter(
+      names = {"--exclude", "-exclude"},
+      description = "Glob pattern for the files and directories to skip in directories."
+    )
+    final List<String> excludeFlags = new ArrayList<>();
+
+    @Parameter(description = "file(s) or directories")
     final List<String> fileNamesFlag = new ArrayList<>();
   }
 
@@ -132,9 +207,15 @@ public final class Main {
 
   private static final String[] ADDITIONAL_USAGE = {
     "If -i is given with -, the result is sent to stdout.",
+    "If --dry-run is given, nothing is written, even with -i.",
     "The --lines, --offset, and --length flags may be given more than once.",
     "The --offset and --length flags must be given an equal number of times.",
-    "If --lines, --offset, or --length are given, only one file (or -) may be given."
+    "If --lines, --offset, or --length are given, only one file (or -) may be given.",
+    "Directories are searched recursively for .java files; symbolic links are not followed.",
+    "The --include and --exclude flags may be given more than once. A pattern containing a '/'",
+    "is matched against paths relative to the directory given, any other against names alone.",
+    "With --batch, no files may be given on the command line. Each output is written to stdout as",
+    "a JSON line, like {\"file\": \"A.java\", \"output\": \"...\"}, in the order of the input."
   };
 
   private final PrintWriter outWriter;
@@ -215,79 +296,242 @@ public final class Main {
                 : JavaFormatterOptions.Style.GOOGLE,
             sortImports);
 
+    // With a single processor, parallel layout is all overhead.
+    if (argInfo.parameters.parallelLayoutFlag > 0
+        && Runtime.getRuntime().availableProcessors() > 1) {
+      options = options.withParallelLayout(argInfo.parameters.parallelLayoutFlag);
+    }
+
+    ProfilingListener profile = null;
+    if (argInfo.parameters.profileFlag) {
+      profile = new ProfilingListener();
+      options = options.withListener(profile);
+    }
+
+    int result;
+    FormatPipeline pipeline = null;
     if (argInfo.parameters.stdinStdoutFlag) {
-      return formatStdin(argInfo, options);
+      result = formatStdin(argInfo, options);
+    } else if (argInfo.parameters.batchFlag) {
+      pipeline = newPipeline(argInfo, options);
+      result = formatBatch(argInfo, pipeline);
     } else {
-      return formatFiles(argInfo, options);
+      pipeline = newPipeline(argInfo, options);
+      result = formatFiles(argInfo, pipeline);
     }
+    if (profile != null) {
+      profile.print(errWriter);
+      if (pipeline != null) {
+        pipeline.printUtilization(errWriter);
+      }
+    }
+    return result;
   }
 
-  private int formatFiles(ArgInfo argInfo, JavaFormatterOptions options) {
-    int numThreads = Math.min(MAX_THREADS, argInfo.parameters.fileNamesFlag.size());
-    ExecutorService executorService = Executors.newFixedThreadPool(numThreads);
+  private FormatPipeline newPipeline(ArgInfo argInfo, JavaFormatterOptions options) {
+    String cacheDir = argInfo.parameters.cacheDirFlag;
+    FormatPipeline.Mode mode;
+    if (argInfo.parameters.dryRunFlag) {
+      mode = FormatPipeline.Mode.DRY_RUN;
+    } else if (argInfo.parameters.iFlag) {
+      mode = FormatPipeline.Mode.IN_PLACE;
+    } else if (argInfo.parameters.batchFlag) {
+      mode = FormatPipeline.Mode.JSON;
+    } else {
+      mode = FormatPipeline.Mode.STDOUT;
+    }
+    return new FormatPipeline(
+        argInfo.threads(),
+        MAX_BUFFERED_BYTES,
+        mode,
+        argInfo.parameters.failFastFlag,
+        parseRangeSet(argInfo.parameters.linesFlags),
+        argInfo.parameters.offsetFlags,
+        argInfo.parameters.lengthFlags,
+        options,
+        outWriter,
+        errWriter,
+        cacheDir == null ? null : Paths.get(cacheDir));
+  }
 
-    Map<Path, String> inputs = new LinkedHashMap<>();
-    Map<Path, Future<String>> results = new LinkedHashMap<>();
+  private int formatFiles(ArgInfo argInfo, final FormatPipeline pipeline) {
+    // Keyed by absolute normalized path, so that a file named twice (as "A.java" and "./A.java",
+    // say) is only formatted once; writing it in place from two workers at once could corrupt it.
+    Map<Path, Path> files = new LinkedHashMap<>();
+    List<Path> directories = new ArrayList<>();
     for (String fileName : argInfo.parameters.fileNamesFlag) {
-      if (!fileName.endsWith(".java")) {
+      Path path = Paths.get(fileName);
+      if (Files.isDirectory(path)) {
+        directories.add(path);
+      } else if (fileName.endsWith(".java")) {
+        Path key = path.toAbsolutePath().normalize();
+        if (!files.containsKey(key)) {
+          files.put(key, path);
+        }
+      } else {
         errWriter.println("Skipping non-Java file: " + fileName);
-        continue;
       }
-      Path path = Paths.get(fileName);
-      String input;
-      try {
-        input = new String(Files.readAllBytes(path), UTF_8);
-      } catch (IOException e) {
-        errWriter.write(fileName + ": could not read file: " + e.getMessage());
-        return 1;
+    }
+
+    // Files named on the command line are handled in order. When formatting in place, files found
+    // in directories are handed to the pipeline as soon as they are found. When writing to stdout
+    // they are handled in path order once the walk finishes, so that the output does not depend on
+    // thread timing; only their paths are held until then.
+    // Overlapping directories ("src src/foo", or the same one twice) find the same file more than
+    // once, so every file found is checked against those already seen, named ones included.
+    final Set<Path> seen = Collections.newSetFromMap(new ConcurrentHashMap<Path, Boolean>());
+    seen.addAll(files.keySet());
+    for (Path path : files.values()) {
+      if (pipeline.isCancelled()) {
+        break;
       }
-      inputs.put(path, input);
-      results.put(
-          path,
-          executorService.submit(
-              new FormatFileCallable(
-                  fileName,
-                  parseRangeSet(argInfo.parameters.linesFlags),
-                  argInfo.parameters.offsetFlags,
-                  argInfo.parameters.lengthFlags,
-                  input,
-                  options)));
+      pipeline.add(path, sizeOf(path));
     }
+    final boolean streaming = argInfo.parameters.iFlag || argInfo.parameters.dryRunFlag;
+    final ConcurrentMap<Path, Long> found = new ConcurrentSkipListMap<>();
+    final AtomicBoolean walkFailed = new AtomicBoolean();
+    new JavaFileWalker(
+            argInfo.parameters.includeFlags,
+            argInfo.parameters.excludeFlags,
+            argInfo.threads())
+        .walk(
+            directories,
+            new JavaFileWalker.Visitor() {
+              @Override
+              public void visitFile(Path file, long size) {
+                if (!seen.add(file.toAbsolutePath().normalize()) || pipeline.isCancelled()) {
+                  return;
+                }
+                if (streaming) {
+                  pipeline.add(file, size);
+                } else {
+                  found.put(file, size);
+                }
+              }
+
+              @Override
+              public void visitFileFailed(Path path, IOException e) {
+                errWriter.println(path + ": could not read directory: " + e.getMessage());
+                walkFailed.set(true);
+              }
+            });
+    for (Map.Entry<Path, Long> file : found.entrySet()) {
+      if (pipeline.isCancelled()) {
+        break;
+      }
+      pipeline.add(file.getKey(), file.getValue());
+    }
+    boolean ok = pipeline.finish() && !walkFailed.get();
+    return ok && !(argInfo.parameters.setExitIfChangedFlag && pipeline.changed()) ? 0 : 1;
+  }
 
-    boolean allOk = true;
-    for (Map.Entry<Path, Future<String>> result : results.entrySet()) {
-      String formatted;
-      try {
-        formatted = result.getValue().get();
-      } catch (InterruptedException e) {
-        errWriter.println(e.getMessage());
-        allOk = false;
-        continue;
-      } catch (ExecutionException e) {
-        if (e.getCause() instanceof FormatterException) {
-          errWriter.println(e.getCause().getMessage());
-        } else {
-          errWriter.println(result.getKey() + ": error: " + e.getCause().getMessage());
+  /**
+   * Formats the files listed on stdin, one JSON object per line, each with its own ranges. A
+   * malformed line is reported and skipped, and makes the exit code 1.
+   */
+  private int formatBatch(ArgInfo argInfo, FormatPipeline pipeline) {
+    boolean ok = true;
+    try {
+      BufferedReader reader = new BufferedReader(new InputStreamReader(inStream, UTF_8));
+      int lineNumber = 0;
+      for (String line; (line = reader.readLine()) != null; ) {
+        lineNumber++;
+        if (pipeline.isCancelled()) {
+          break;
         }
-        allOk = false;
-        continue;
-      }
-      if (argInfo.parameters.iFlag) {
-        if (formatted.equals(inputs.get(result.getKey()))) {
-          continue; // preserve original file
+        if (line.trim().isEmpty()) {
+          continue;
         }
         try {
-          Files.write(result.getKey(), formatted.getBytes(UTF_8));
-        } catch (IOException e) {
-          errWriter.write(result.getKey() + ": could not write file: " + e.getMessage());
-          allOk = false;
-          continue;
+          BatchEntry entry = BatchEntry.parse(line);
+          pipeline.add(
+              entry.path, sizeOf(entry.path), entry.lineRanges, entry.offsets, entry.lengths);
+        } catch (IllegalArgumentException e) {
+          errWriter.println(Formatter.STDIN_FILENAME + ":" + lineNumber + ": " + e.getMessage());
+          ok = false;
         }
-      } else {
-        outWriter.write(formatted);
       }
+    } catch (IOException e) {
+      errWriter.println(Formatter.STDIN_FILENAME + ": could not read: " + e.getMessage());
+      ok = false;
+    }
+    ok &= pipeline.finish();
+    return ok && !(argInfo.parameters.setExitIfChangedFlag && pipeline.changed()) ? 0 : 1;
+  }
+
+  /** One line of {@code --batch} input: a file and the ranges to format in it. */
+  private static final class BatchEntry {
+    final Path path;
+    final RangeSet<Integer> lineRanges;
+    final List<Integer> offsets = new ArrayList<>();
+    final List<Integer> lengths = new ArrayList<>();
+
+    private BatchEntry(Path path, RangeSet<Integer> lineRanges) {
+      this.path = path;
+      this.lineRanges = lineRanges;
+    }
+
+    /**
+     * Parses a line like {@code {"file": "A.java", "lines": ["5:10", "7"], "offsets": [[0, 4]]}}.
+     * Only {@code file} is required; with no ranges, the whole file is formatted.
+     */
+    static BatchEntry parse(String line) {
+      Object value = Json.parse(line);
+      if (!(value instanceof Map)) {
+        throw new IllegalArgumentException("expected a JSON object");
+      }
+      Map<?, ?> object = (Map<?, ?>) value;
+      for (Object key : object.keySet()) {
+        if (!key.equals("file") && !key.equals("lines") && !key.equals("offsets")) {
+          throw new IllegalArgumentException("unknown key: " + key);
+        }
+      }
+      if (!(object.get("file") instanceof String)) {
+        throw new IllegalArgumentException("expected a string \"file\"");
+      }
+      List<String> linesFlags = new ArrayList<>();
+      for (Object lines : list(object, "lines")) {
+        if (!(lines instanceof String)) {
+          throw new IllegalArgumentException("expected \"lines\" to hold strings like \"5:10\"");
+        }
+        linesFlags.add((String) lines);
+      }
+      BatchEntry entry =
+          new BatchEntry(Paths.get((String) object.get("file")), parseRangeSet(linesFlags));
+      for (Object offset : list(object, "offsets")) {
+        if (!(offset instanceof List)
+            || ((List<?>) offset).size() != 2
+            || !(((List<?>) offset).get(0) instanceof Long)
+            || !(((List<?>) offset).get(1) instanceof Long)) {
+          throw new IllegalArgumentException(
+              "expected \"offsets\" to hold [offset, length] pairs");
+        }
+        entry.offsets.add(Ints.checkedCast((Long) ((List<?>) offset).get(0)));
+        entry.lengths.add(Ints.checkedCast((Long) ((List<?>) offset).get(1)));
+      }
+      return entry;
+    }
+
+    /** Returns the array under {@code key}, or an empty list if there is none. */
+    private static List<?> list(Map<?, ?> object, String key) {
+      Object value = object.get(key);
+      if (value == null) {
+        return ImmutableList.of();
+      }
+      if (!(value instanceof List)) {
+        throw new IllegalArgumentException("expected \"" + key + "\" to be an array");
+      }
+      return (List<?>) value;
+    }
+  }
+
+  /** Returns the size of a file, or zero if it cannot be read; the read will report the error. */
+  private static long sizeOf(Path path) {
+    try {
+      return Files.size(path);
+    } catch (IOException e) {
+      return 0;
     }
-    return allOk ? 0 : 1;
   }
 
   private int formatStdin(ArgInfo argInfo, JavaFormatterOptions options) {
@@ -307,8 +551,15 @@ public final class Main {
                   input,
                   options)
               .call();
-      outWriter.write(output);
-      return 0;
+      boolean changed = !output.equals(input);
+      if (argInfo.parameters.dryRunFlag) {
+        if (changed) {
+          outWriter.println(Formatter.STDIN_FILENAME);
+        }
+      } else {
+        outWriter.write(output);
+      }
+      return changed && argInfo.parameters.setExitIfChangedFlag ? 1 : 0;
     } catch (FormatterException e) {
       errWriter.println(e.getMessage());
       return 1;
@@ -336,22 +587,48 @@ public final class Main {
         filesToFormat++;
       }
 
-      if (parameters.iFlag && parameters.fileNamesFlag.isEmpty()) {
+      if (parameters.batchFlag && (filesToFormat != 0 || argInfo.isSelection())) {
+        argInfo.throwUsage();
+      }
+      if (parameters.iFlag && parameters.fileNamesFlag.isEmpty() && !parameters.batchFlag) {
         argInfo.throwUsage();
       }
       if (argInfo.isSelection() && filesToFormat != 1) {
         argInfo.throwUsage();
       }
+      for (String fileName : parameters.fileNamesFlag) {
+        if (argInfo.isSelection() && Files.isDirectory(Paths.get(fileName))) {
+          argInfo.throwUsage();
+        }
+      }
+      if (parameters.failFastFlag
+          && !parameters.dryRunFlag
+          && !parameters.setExitIfChangedFlag) {
+        argInfo.throwUsage();
+      }
+      if (parameters.threadsFlag < 0 || parameters.parallelLayoutFlag < 0) {
+        argInfo.throwUsage();
+      }
       if (parameters.offsetFlags.size() != parameters.lengthFlags.size()) {
         argInfo.throwUsage();
       }
-      if (filesToFormat <= 0 && !parameters.versionFlag && !parameters.helpFlag) {
+      if (filesToFormat <= 0
+          && !parameters.batchFlag
+          && !parameters.versionFlag
+          && !parameters.helpFlag) {
         argInfo.throwUsage();
       }
 
       return argInfo;
     }
 
+    /** Returns the number of threads to format files on. */
+    int threads() {
+      return parameters.threadsFlag > 0
+          ? parameters.threadsFlag
+          : Runtime.getRuntime().availableProcessors();
+    }
+
     boolean isSelection() {
       return !parameters.linesFlags.isEmpty()
           || !parameters.offsetFlags.isEmpty()
@@ -0,0 +1,316 @@
+/*
+ * Copyright 2016 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.google.googlejavaformat.java;
+
+import com.google.common.base.CharMatcher;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Iterables;
+import com.google.common.collect.Range;
+import com.google.common.collect.RangeSet;
+import com.google.common.collect.TreeRangeSet;
+import com.google.googlejavaformat.java.FormatterListener.Phase;
+
+import org.eclipse.jdt.core.dom.AbstractTypeDeclaration;
+import org.eclipse.jdt.core.dom.AnnotationTypeDeclaration;
+import org.eclipse.jdt.core.dom.BodyDeclaration;
+import org.eclipse.jdt.core.dom.CompilationUnit;
+import org.eclipse.jdt.core.dom.EnumDeclaration;
+import org.eclipse.jdt.core.dom.TypeDeclaration;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Formats the body declarations of top-level types on their own, each inside a stub of its
+ * enclosing type: a declaration that has its lines to itself starts at the same indent wherever
+ * it is, so its formatting only depends on its neighbours, which decide the blank lines around it.
+ * The stub holds the declaration and the text from the start of the previous declaration to the
+ * end of the next one. Used to format a few lines of a large file without visiting and laying out
+ * all of it.
+ */
+final class MemberFormatter {
+
+  private static final CharMatcher HORIZONTAL_WHITESPACE = CharMatcher.anyOf(" \t\r");
+  private static final String STUB_SUFFIX = "}\n";
+
+  private MemberFormatter() {}
+
+  /** A body declaration of a top-level type, with the whole lines it occupies. */
+  static final class Member {
+    /** The start of a stub of the enclosing type, to format the declaration in. */
+    final String stubPrefix;
+
+    int start;
+    int end;
+    /** The text to format the declaration with: see {@link MemberFormatter}. */
+    int stubStart;
+    int stubEnd;
+    boolean formatted;
+
+    Member(
+        String stubPrefix, int start, int end, int stubStart, int stubEnd, boolean formatted) {
+      this.stubPrefix = stubPrefix;
+      this.start = start;
+      this.end = end;
+      this.stubStart = stubStart;
+      this.stubEnd = stubEnd;
+      this.formatted = formatted;
+    }
+  }
+
+  /**
+   * Formats the given ranges of {@code text} one declaration at a time, if they all fall inside
+   * body declarations of top-level types.
+   *
+   * @return the replacements, as {@link Formatter#getFormatReplacements} would return them, or
+   *     {@code null} if the ranges cannot be formatted one declaration at a time
+   */
+  static ImmutableList<Replacement> formatMembers(
+      Formatter formatter,
+      String text,
+      Collection<Range<Integer>> characterRanges,
+      PhaseTimer timer) {
+    RangeSet<Integer> requested = TreeRangeSet.create();
+    for (Range<Integer> range : characterRanges) {
+      if (!Range.closed(0, text.length()).encloses(range)) {
+        // Let the Formatter report it.
+        return null;
+      }
+      requested.add(range);
+    }
+    timer.start(Phase.PARSE);
+    List<Member> members = findMembers(text, false);
+    if (members == null) {
+      return null;
+    }
+    // A range spanning two declarations can change the blank lines between them.
+    for (Range<Integer> range : requested.asRanges()) {
+      if (!encloses(members, range)) {
+        return null;
+      }
+    }
+    // Formatting many declarations on their own, each with its neighbours, costs more than
+    // formatting the file once.
+    int stubLength = 0;
+    for (Member member : members) {
+      if (!requested.subRangeSet(Range.closedOpen(member.start, member.end)).isEmpty()) {
+        stubLength += member.stubEnd - member.stubStart;
+      }
+    }
+    if (stubLength > text.length()) {
+      return null;
+    }
+    ImmutableList.Builder<Replacement> replacements = ImmutableList.builder();
+    int lastEnd = -1;
+    for (Member member : members) {
+      RangeSet<Integer> ranges = requested.subRangeSet(Range.closedOpen(member.start, member.end));
+      if (ranges.isEmpty()) {
+        continue;
+      }
+      List<Replacement> memberReplacements =
+          formatMember(formatter, text, member, ranges.asRanges(), timer);
+      if (memberReplacements == null) {
+        return null;
+      }
+      if (memberReplacements.isEmpty()) {
+        continue;
+      }
+      // Where the replacements of two declarations meet, the Formatter joins them into one, which
+      // can add blank lines between them.
+      if (memberReplacements.get(0).getReplaceRange().lowerEndpoint() <= lastEnd) {
+        return null;
+      }
+      replacements.addAll(memberReplacements);
+      lastEnd = Iterables.getLast(memberReplacements).getReplaceRange().upperEndpoint();
+    }
+    return replacements.build();
+  }
+
+  /** Returns whether {@code range} lies inside a single one of {@code members}. */
+  private static boolean encloses(List<Member> members, Range<Integer> range) {
+    for (Member member : members) {
+      if (Range.closedOpen(member.start, member.end).encloses(range)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Formats the given ranges of one declaration inside a stub of its enclosing type, and returns
+   * the replacements in document coordinates, or {@code null} if the declaration and its
+   * neighbours no longer parse as they did.
+   */
+  static List<Replacement> formatMember(
+      Formatter formatter,
+      String text,
+      Member member,
+      Collection<Range<Integer>> ranges,
+      PhaseTimer timer) {
+    String body = text.substring(member.stubStart, member.stubEnd);
+    int shift = member.stubStart - member.stubPrefix.length();
+    String stub = member.stubPrefix + body + STUB_SUFFIX;
+
+    List<Member> parsed = findMembers(stub, false);
+    if (parsed == null || !contains(parsed, member, shift)) {
+      return null;
+    }
+
+    List<Range<Integer>> stubRanges = new ArrayList<>();
+    for (Range<Integer> range : ranges) {
+      stubRanges.add(
+          Range.closedOpen(range.lowerEndpoint() - shift, range.upperEndpoint() - shift));
+    }
+    ImmutableList<Replacement> replacements;
+    try {
+      replacements = formatter.getStubFormatReplacements(stub, stubRanges, timer);
+    } catch (FormatterException e) {
+      return null;
+    }
+    List<Replacement> result = new ArrayList<>();
+    for (Replacement replacement : replacements) {
+      Range<Integer> range = replacement.getReplaceRange();
+      if (range.lowerEndpoint() < member.stubPrefix.length()
+          || range.upperEndpoint() > member.stubPrefix.length() + body.length()) {
+        return null;
+      }
+      result.add(
+          Replacement.create(
+              range.lowerEndpoint() + shift,
+              range.upperEndpoint() + shift,
+              replacement.getReplacementString()));
+    }
+    return result;
+  }
+
+  /**
+   * Parses {@code text} and returns the body declarations of its top-level types that have their
+   * lines to themselves, as do their neighbours, or {@code null} if it does not parse.
+   */
+  @SuppressWarnings("unchecked") // jdt uses rawtypes
+  static List<Member> findMembers(String text, boolean formatted) {
+    CompilationUnit unit = (CompilationUnit) Formatter.parser(text).createAST(null);
+    if (unit.getMessages().length > 0) {
+      return null;
+    }
+    List<Member> members = new ArrayList<>();
+    for (AbstractTypeDeclaration type : (List<AbstractTypeDeclaration>) unit.types()) {
+      String stubPrefix = stubPrefix(type);
+      List<BodyDeclaration> declarations = type.bodyDeclarations();
+      int[] starts = new int[declarations.size()];
+      int[] ends = new int[declarations.size()];
+      for (int i = 0; i < declarations.size(); i++) {
+        BodyDeclaration declaration = declarations.get(i);
+        int start = unit.getExtendedStartPosition(declaration);
+        int end = start + unit.getExtendedLength(declaration);
+        starts[i] = lineStart(text, start);
+        ends[i] = starts[i] >= 0 ? lineEnd(text, end) : -1;
+      }
+      for (int i = 0; i < declarations.size(); i++) {
+        // The stub starts at the previous declaration, or with the blank lines before the first.
+        int stubStart;
+        if (i > 0) {
+          stubStart = ends[i - 1] >= 0 ? starts[i - 1] : -1;
+        } else {
+          stubStart = ends[i] >= 0 ? blankLinesStart(text, starts[i]) : -1;
+        }
+        // It ends with the next declaration, or at the start of the line that closes the type.
+        int stubEnd =
+            i + 1 < declarations.size()
+                ? ends[i + 1]
+                : lineStart(text, type.getStartPosition() + type.getLength() - 1);
+        if (ends[i] >= 0 && stubStart >= 0 && stubEnd >= 0) {
+          members.add(new Member(stubPrefix, starts[i], ends[i], stubStart, stubEnd, formatted));
+        }
+      }
+    }
+    return members;
+  }
+
+  /** Returns whether {@code members} has {@code member}, moved back by {@code shift}. */
+  private static boolean contains(List<Member> members, Member member, int shift) {
+    for (Member other : members) {
+      if (other.start == member.start - shift
+          && other.end == member.end - shift
+          && other.stubStart == member.stubStart - shift
+          && other.stubEnd == member.stubEnd - shift) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /** Returns the start of a type with the same kind and name as {@code type}, but no members. */
+  private static String stubPrefix(AbstractTypeDeclaration type) {
+    String name = type.getName().getIdentifier();
+    if (type instanceof EnumDeclaration) {
+      return "enum " + name + " {\n;\n";
+    }
+    if (type instanceof AnnotationTypeDeclaration) {
+      return "@interface " + name + " {\n";
+    }
+    return (((TypeDeclaration) type).isInterface() ? "interface " : "class ") + name + " {\n";
+  }
+
+  /**
+   * Returns the start of the line containing {@code position}, or -1 if anything but whitespace
+   * comes before it on that line.
+   */
+  private static int lineStart(String text, int position) {
+    while (position > 0 && HORIZONTAL_WHITESPACE.matches(text.charAt(position - 1))) {
+      position--;
+    }
+    return position == 0 || text.charAt(position - 1) == '\n' ? position : -1;
+  }
+
+  /** Returns the start of the blank lines before the line starting at {@code lineStart}. */
+  private static int blankLinesStart(String text, int lineStart) {
+    int start = lineStart;
+    for (int i = lineStart - 1; i >= 0; i--) {
+      char c = text.charAt(i);
+      if (c == '\n') {
+        start = i + 1;
+      } else if (!HORIZONTAL_WHITESPACE.matches(c)) {
+        break;
+      }
+    }
+    return start;
+  }
+
+  /**
+   * Returns the end of the line containing {@code position}, after its newline, or -1 if anything
+   * but whitespace comes after it on that line.
+   */
+  private static int lineEnd(String text, int position) {
+    while (position < text.length() && HORIZONTAL_WHITESPACE.matches(text.charAt(position))) {
+      position++;
+    }
+    if (position == text.length()) {
+      return position;
+    }
+    return text.charAt(position) == '\n' ? position + 1 : -1;
+  }
+
+  static final Comparator<Replacement> BY_START =
+      new Comparator<Replacement>() {
+        @Override
+        public int compare(Replacement o1, Replacement o2) {
+          return Integer.compare(
+              o1.getReplaceRange().lowerEndpoint(), o2.getReplaceRange().lowerEndpoint());
+        }
+      };
+}
@@ -20,19 +20,19 @@ import com.google.common.collect.ImmutableList;
 import com.google.common.collect.Ordering;
 import com.google.common.collect.Range;
 import com.google.common.collect.RangeSet;
-import com.google.common.collect.TreeRangeMap;
 import com.google.googlejavaformat.Input.Tok;
 import com.google.googlejavaformat.Input.Token;
 
+import org.eclipse.jdt.core.ToolFactory;
+import org.eclipse.jdt.core.compiler.IScanner;
 import org.eclipse.jdt.core.compiler.ITerminalSymbols;
+import org.eclipse.jdt.core.compiler.InvalidInputException;
 
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.Iterator;
 import java.util.List;
-import java.util.Map;
-import java.util.Map.Entry;
 
 import javax.lang.model.element.Modifier;
 
@@ -83,20 +83,38 @@ public class ModifierOrderer {
 
   /**
    * Reorders all modifiers in the given text and within the given character ranges to be in JLS
-   * order.
+   * order. The text is only lexed into a {@link JavaInput} if a modifier is out of order.
    */
   public static String reorderModifiers(
       String fileName, String text, Collection<Range<Integer>> characterRanges)
       throws FormatterException {
-    JavaInput javaInput = new JavaInput(fileName, text);
+    if (!hasUnorderedModifiers(text)) {
+      return text;
+    }
+    return reorderModifiers(new JavaInput(fileName, text), characterRanges).getText();
+  }
+
+  /**
+   * Reorders all modifiers in the given input and within the given character ranges to be in JLS
+   * order. The input is only lexed again if a modifier was out of order.
+   *
+   * @return {@code javaInput} if the modifiers were already in order, otherwise a new
+   *     {@link JavaInput} for the reordered text
+   */
+  static JavaInput reorderModifiers(
+      JavaInput javaInput, Collection<Range<Integer>> characterRanges)
+      throws FormatterException {
     if (javaInput.getTokens().isEmpty()) {
       // There weren't any tokens, possible because of a lexing error.
       // Errors about invalid input will be reported later after parsing.
-      return text;
+      return javaInput;
+    }
+    if (!hasUnorderedModifiers(javaInput.getTokens())) {
+      return javaInput;
     }
     RangeSet<Integer> tokenRanges = javaInput.characterRangesToTokenRanges(characterRanges);
     Iterator<? extends Token> it = javaInput.getTokens().iterator();
-    TreeRangeMap<Integer, String> replacements = TreeRangeMap.create();
+    List<Replacement> replacements = new ArrayList<>();
     while (it.hasNext()) {
       Token token = it.next();
       if (!tokenRanges.contains(token.getTok().getIndex())) {
@@ -123,7 +141,7 @@ public class ModifierOrderer {
         }
         mods.add(mod);
         modifierTokens.add(token);
-        end = token.getTok().getPosition() + token.getTok().getOriginalText().length();
+        end = token.getTok().getPosition() + token.getTok().length();
       }
 
       if (!Ordering.natural().isOrdered(mods)) {
@@ -138,10 +156,52 @@ public class ModifierOrderer {
             addTrivia(replacement, modifierTokens.get(i).getToksAfter());
           }
         }
-        replacements.put(Range.closedOpen(begin, end), replacement.toString());
+        replacements.add(Replacement.create(begin, end, replacement.toString()));
       }
     }
-    return applyReplacements(javaInput.getText(), replacements);
+    if (replacements.isEmpty()) {
+      return javaInput;
+    }
+    return new JavaInput(
+        javaInput.filename(), JavaOutput.applyReplacements(javaInput.getText(), replacements));
+  }
+
+  /**
+   * Returns whether the text has two adjacent modifiers out of JLS order anywhere, scanning its
+   * tokens without building a {@link JavaInput}. Text that cannot be scanned is reported as
+   * unordered, so that the error is reported when it is lexed.
+   */
+  static boolean hasUnorderedModifiers(String text) {
+    IScanner scanner = ToolFactory.createScanner(false, false, false, "1.8");
+    scanner.setSource(text.toCharArray());
+    Modifier previous = null;
+    try {
+      for (int tokenId = scanner.getNextToken();
+          tokenId != ITerminalSymbols.TokenNameEOF;
+          tokenId = scanner.getNextToken()) {
+        Modifier mod = getModifier(tokenId);
+        if (previous != null && mod != null && previous.compareTo(mod) > 0) {
+          return true;
+        }
+        previous = mod;
+      }
+    } catch (InvalidInputException e) {
+      return true;
+    }
+    return false;
+  }
+
+  /** Returns whether two adjacent tokens are modifiers out of JLS order anywhere. */
+  private static boolean hasUnorderedModifiers(List<? extends Token> tokens) {
+    Modifier previous = null;
+    for (Token token : tokens) {
+      Modifier mod = asModifier(token);
+      if (previous != null && mod != null && previous.compareTo(mod) > 0) {
+        return true;
+      }
+      previous = mod;
+    }
+    return false;
   }
 
   private static void addTrivia(StringBuilder replacement, ImmutableList<? extends Tok> toks) {
@@ -157,21 +217,4 @@ public class ModifierOrderer {
   private static Modifier asModifier(Token token) {
     return getModifier(((JavaInput.Tok) token.getTok()).id());
   }
-
-  /** Applies replacements to the given string. */
-  private static String applyReplacements(
-      String text, TreeRangeMap<Integer, String> replacementMap) {
-    // process in descending order so the replacement ranges aren't perturbed if any replacements
-    // differ in size from the input
-    Map<Range<Integer>, String> ranges = replacementMap.asDescendingMapOfRanges();
-    if (ranges.isEmpty()) {
-      return text;
-    }
-    StringBuilder sb = new StringBuilder(text);
-    for (Entry<Range<Integer>, String> entry : ranges.entrySet()) {
-      Range<Integer> range = entry.getKey();
-      sb.replace(range.lowerEndpoint(), range.upperEndpoint(), entry.getValue());
-    }
-    return sb.toString();
-  }
 }
@@ -0,0 +1,89 @@
+/*
+ * Copyright 2016 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.google.googlejavaformat.java;
+
+import com.google.googlejavaformat.java.FormatterListener.Phase;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+
+/**
+ * Measures the phases of formatting a single file on the current thread, and reports them to a
+ * {@link FormatterListener}. Does nothing if the listener is {@link FormatterListener#NONE}.
+ */
+final class PhaseTimer {
+
+  /** Used to measure per-thread allocation, or {@code null} if the JVM doesn't support it. */
+  private static final com.sun.management.ThreadMXBean ALLOCATION_BEAN = allocationBean();
+
+  private static com.sun.management.ThreadMXBean allocationBean() {
+    try {
+      ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+      if (!(bean instanceof com.sun.management.ThreadMXBean)) {
+        return null;
+      }
+      com.sun.management.ThreadMXBean allocationBean = (com.sun.management.ThreadMXBean) bean;
+      if (!allocationBean.isThreadAllocatedMemorySupported()
+          || !allocationBean.isThreadAllocatedMemoryEnabled()) {
+        return null;
+      }
+      return allocationBean;
+    } catch (LinkageError e) {
+      // Not a HotSpot-compatible JVM.
+      return null;
+    }
+  }
+
+  private final String fileName;
+  private final FormatterListener listener;
+
+  private Phase phase = null; // The current phase, or null.
+  private long startNanos;
+  private long startBytes;
+
+  PhaseTimer(String fileName, FormatterListener listener) {
+    this.fileName = fileName;
+    this.listener = listener;
+  }
+
+  /** Ends the current phase, if any, and starts timing {@code phase}. */
+  void start(Phase phase) {
+    if (listener == FormatterListener.NONE) {
+      return;
+    }
+    end();
+    this.phase = phase;
+    this.startBytes = allocatedBytes();
+    this.startNanos = System.nanoTime();
+  }
+
+  /** Ends the current phase, if any, and reports it to the listener. */
+  void end() {
+    if (phase == null) {
+      return;
+    }
+    long elapsedNanos = System.nanoTime() - startNanos;
+    long bytes = allocatedBytes();
+    listener.phaseCompleted(
+        fileName, phase, elapsedNanos, bytes >= 0 && startBytes >= 0 ? bytes - startBytes : -1);
+    phase = null;
+  }
+
+  private static long allocatedBytes() {
+    return ALLOCATION_BEAN != null
+        ? ALLOCATION_BEAN.getThreadAllocatedBytes(Thread.currentThread().getId())
+        : -1;
+  }
+}
@@ -0,0 +1,83 @@
+/*
+ * Copyright 2016 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.google.googlejavaformat.java;
+
+import com.google.common.base.Ascii;
+
+import java.io.PrintWriter;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A {@link FormatterListener} that aggregates the cost of each phase over all formatted files, for
+ * the {@code --profile} flag.
+ */
+final class ProfilingListener implements FormatterListener {
+
+  private static final int PHASES = Phase.values().length;
+
+  private final AtomicLongArray counts = new AtomicLongArray(PHASES);
+  private final AtomicLongArray nanos = new AtomicLongArray(PHASES);
+  private final AtomicLongArray bytes = new AtomicLongArray(PHASES);
+
+  @Override
+  public void phaseCompleted(String fileName, Phase phase, long elapsedNanos, long allocatedBytes) {
+    int i = phase.ordinal();
+    counts.incrementAndGet(i);
+    nanos.addAndGet(i, elapsedNanos);
+    if (allocatedBytes >= 0) {
+      bytes.addAndGet(i, allocatedBytes);
+    }
+  }
+
+  /** Prints the per-phase breakdown, summed over all files and threads. */
+  void print(PrintWriter writer) {
+    long totalNanos = 0;
+    long totalBytes = 0;
+    for (int i = 0; i < PHASES; i++) {
+      totalNanos += nanos.get(i);
+      totalBytes += bytes.get(i);
+    }
+    String format = "%-18s %8s %12s %7s %14s%n";
+    writer.format(format, "phase", "calls", "time (ms)", "time %", "allocated (MB)");
+    for (Phase phase : Phase.values()) {
+      int i = phase.ordinal();
+      if (counts.get(i) == 0) {
+        continue;
+      }
+      writer.format(
+          format,
+          Ascii.toLowerCase(phase.name()),
+          counts.get(i),
+          millis(nanos.get(i)),
+          percent(nanos.get(i), totalNanos),
+          megabytes(bytes.get(i)));
+    }
+    writer.format(format, "total", "", millis(totalNanos), "", megabytes(totalBytes));
+    writer.flush();
+  }
+
+  private static String millis(long nanos) {
+    return String.valueOf(TimeUnit.NANOSECONDS.toMillis(nanos));
+  }
+
+  private static String percent(long part, long total) {
+    return total > 0 ? String.format("%.1f", 100.0 * part / total) : "-";
+  }
+
+  private static String megabytes(long bytes) {
+    return String.format("%.1f", bytes / (1024.0 * 1024.0));
+  }
+}
@@ -0,0 +1,120 @@
+/*
+ * Copyright 2016 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.google.googlejavaformat.java;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+
+/**
+ * The wire format shared by {@link FormatterServer} and {@link FormatterClient}. It only uses the
+ * JDK, so that the client starts without loading the formatter or its dependencies.
+ *
+ * <p>A connection carries any number of requests, each answered before the next is read. All
+ * integers are big-endian, and a string is an {@code int} byte count followed by UTF-8 bytes.
+ *
+ * <pre>
+ * request  = MAGIC token command [fileName style sortImports lineRanges offsets content]
+ * style, sortImports = one byte each, the ordinal of the {@link JavaFormatterOptions} enum
+ * lineRanges = count (firstLine endLine)*     0-based, end exclusive; none means the whole file
+ * offsets  = count (offset length)*
+ * response = OK (output | count (start end text)*) | ERROR message
+ * </pre>
+ *
+ * <p>The token is a string the server generates when it starts and writes to a file only its user
+ * can read, by default {@link #defaultTokenFile}. A request without it is refused, so that other
+ * local users cannot use or stop the server.
+ *
+ * <p>{@link #SHUTDOWN} has no arguments; the server answers {@link #OK} and stops accepting
+ * connections.
+ */
+final class ServerProtocol {
+
+  /** Starts every request: "GJF1". */
+  static final int MAGIC = 0x474a4631;
+
+  /** Returns the formatted file. */
+  static final byte FORMAT = 1;
+
+  /** Returns the replacements that would format the file. */
+  static final byte REPLACEMENTS = 2;
+
+  /** Stops the server. */
+  static final byte SHUTDOWN = 3;
+
+  /** {@link JavaFormatterOptions.Style#GOOGLE}. */
+  static final byte STYLE_GOOGLE = 0;
+
+  /** {@link JavaFormatterOptions.Style#AOSP}. */
+  static final byte STYLE_AOSP = 1;
+
+  /** {@link JavaFormatterOptions.SortImports#NO}. */
+  static final byte SORT_IMPORTS_NO = 0;
+
+  /** {@link JavaFormatterOptions.SortImports#ONLY}. */
+  static final byte SORT_IMPORTS_ONLY = 1;
+
+  /** {@link JavaFormatterOptions.SortImports#ALSO}. */
+  static final byte SORT_IMPORTS_ALSO = 2;
+
+  static final byte OK = 0;
+  static final byte ERROR = 1;
+
+  /**
+   * The longest string, in bytes, that is read; the same as the budget {@link Main} gives its
+   * {@link FormatPipeline}. The length comes off the wire, so it is checked before anything is
+   * allocated.
+   */
+  static final int MAX_STRING_BYTES = 64 << 20;
+
+  /** The longest token that is read. */
+  static final int MAX_TOKEN_BYTES = 64;
+
+  private ServerProtocol() {}
+
+  static void writeString(DataOutputStream out, String s) throws IOException {
+    byte[] bytes = s.getBytes(UTF_8);
+    out.writeInt(bytes.length);
+    out.write(bytes);
+  }
+
+  /**
+   * Returns the file the server on {@code port} writes its token to, unless told otherwise: {@code
+   * ~/.google-java-format/server-PORT.token}.
+   */
+  static Path defaultTokenFile(int port) {
+    return Paths.get(
+        System.getProperty("user.home"), ".google-java-format", "server-" + port + ".token");
+  }
+
+  static String readString(DataInputStream in) throws IOException {
+    return readString(in, MAX_STRING_BYTES);
+  }
+
+  /** Reads a string, which must be at most {@code maxBytes} long. */
+  static String readString(DataInputStream in, int maxBytes) throws IOException {
+    int length = in.readInt();
+    if (length < 0 || length > maxBytes) {
+      throw new IOException("string length out of range: " + length);
+    }
+    byte[] bytes = new byte[length];
+    in.readFully(bytes);
+    return new String(bytes, UTF_8);
+  }
+}
@@ -150,4 +150,20 @@ public class CommandLineFlagsTest {
       // expected
     }
   }
+
+  @Test
+  public void threadsMustNotBeNegative() {
+    try {
+      ArgInfo.processArgs("--threads=-1", "Foo.java");
+      fail();
+    } catch (UsageException e) {
+      // expected
+    }
+
+    try {
+      ArgInfo.processArgs("--threads=3", "Foo.java");
+    } catch (UsageException e) {
+      fail();
+    }
+  }
 }
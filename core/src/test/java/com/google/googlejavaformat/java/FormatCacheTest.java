@@ -0,0 +1,120 @@
+/*
+ * Copyright 2016 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.google.googlejavaformat.java;
+
+import static com.google.common.truth.Truth.assertThat;
+import static org.junit.Assert.fail;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.TreeRangeSet;
+import com.google.googlejavaformat.java.JavaFormatterOptions.JavadocFormatter;
+import com.google.googlejavaformat.java.JavaFormatterOptions.SortImports;
+import com.google.googlejavaformat.java.JavaFormatterOptions.Style;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.nio.file.Path;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Tests for {@link FormatCache}.
+ */
+@RunWith(JUnit4.class)
+public class FormatCacheTest {
+
+  private static final JavaFormatterOptions OPTIONS =
+      new JavaFormatterOptions(JavadocFormatter.NONE, Style.GOOGLE, SortImports.NO);
+
+  @Rule public TemporaryFolder testFolder = new TemporaryFolder();
+
+  /** Formats an input, counting the calls. */
+  private static final class CountingCallable extends FormatFileCallable {
+    final AtomicInteger calls;
+
+    CountingCallable(String fileName, String input, AtomicInteger calls) {
+      super(
+          fileName,
+          TreeRangeSet.<Integer>create(),
+          ImmutableList.<Integer>of(),
+          ImmutableList.<Integer>of(),
+          input,
+          OPTIONS);
+      this.calls = calls;
+    }
+
+    @Override
+    public String call() throws FormatterException {
+      calls.incrementAndGet();
+      return super.call();
+    }
+  }
+
+  private static String format(FormatCache cache, String input, AtomicInteger calls)
+      throws FormatterException {
+    return cache.format(OPTIONS.toString(), input, new CountingCallable("T.java", input, calls));
+  }
+
+  @Test
+  public void reusesResultsAcrossRuns() throws Exception {
+    Path directory = testFolder.newFolder("cache").toPath();
+    AtomicInteger calls = new AtomicInteger();
+
+    FormatCache first = new FormatCache(directory);
+    assertThat(format(first, "class T {   }\n", calls)).isEqualTo("class T {}\n");
+    assertThat(format(first, "class U {}\n", calls)).isEqualTo("class U {}\n");
+    assertThat(calls.get()).isEqualTo(2);
+    assertThat(first.hits()).isEqualTo(0);
+
+    FormatCache second = new FormatCache(directory);
+    assertThat(format(second, "class T {   }\n", calls)).isEqualTo("class T {}\n");
+    assertThat(format(second, "class U {}\n", calls)).isEqualTo("class U {}\n");
+    assertThat(calls.get()).isEqualTo(2);
+    assertThat(second.hits()).isEqualTo(2);
+
+    String input = "class U {}\n";
+    assertThat(second.format("other", input, new CountingCallable("U.java", input, calls)))
+        .isEqualTo(input);
+    assertThat(calls.get()).isEqualTo(3);
+  }
+
+  @Test
+  public void formatsIdenticalInputsOnceWithoutDirectory() throws Exception {
+    AtomicInteger calls = new AtomicInteger();
+    FormatCache cache = new FormatCache(null);
+    assertThat(format(cache, "class U {}\n", calls)).isEqualTo("class U {}\n");
+    assertThat(format(cache, "class U {}\n", calls)).isEqualTo("class U {}\n");
+    assertThat(calls.get()).isEqualTo(1);
+    assertThat(cache.hits()).isEqualTo(1);
+  }
+
+  @Test
+  public void doesNotCacheErrors() throws Exception {
+    AtomicInteger calls = new AtomicInteger();
+    FormatCache cache = new FormatCache(testFolder.newFolder("cache").toPath());
+    for (String fileName : new String[] {"A.java", "B.java"}) {
+      try {
+        cache.format("", "class T {\n", new CountingCallable(fileName, "class T {\n", calls));
+        fail();
+      } catch (FormatterException e) {
+        assertThat(e.getMessage()).startsWith(fileName);
+      }
+    }
+    assertThat(calls.get()).isEqualTo(2);
+  }
+}
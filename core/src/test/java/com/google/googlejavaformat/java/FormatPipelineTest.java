@@ -0,0 +1,111 @@
+/*
+ * Copyright 2016 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.google.googlejavaformat.java;
+
+import static com.google.common.truth.Truth.assertThat;
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.TreeRangeSet;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+/**
+ * Tests for {@link FormatPipeline}.
+ */
+@RunWith(JUnit4.class)
+public class FormatPipelineTest {
+
+  @Rule public TemporaryFolder testFolder = new TemporaryFolder();
+
+  private FormatPipeline pipeline(int maxBufferedBytes, boolean inPlace, StringWriter out) {
+    return new FormatPipeline(
+        4,
+        maxBufferedBytes,
+        inPlace ? FormatPipeline.Mode.IN_PLACE : FormatPipeline.Mode.STDOUT,
+        false,
+        TreeRangeSet.<Integer>create(),
+        ImmutableList.<Integer>of(),
+        ImmutableList.<Integer>of(),
+        new JavaFormatterOptions(
+            JavaFormatterOptions.JavadocFormatter.NONE,
+            JavaFormatterOptions.Style.GOOGLE,
+            JavaFormatterOptions.SortImports.NO),
+        new PrintWriter(out, true),
+        new PrintWriter(new StringWriter(), true),
+        null);
+  }
+
+  private Path write(String name, String content) throws Exception {
+    Path path = testFolder.getRoot().toPath().resolve(name);
+    Files.write(path, content.getBytes(UTF_8));
+    return path;
+  }
+
+  @Test
+  public void emitsInOrderWithinBudget() throws Exception {
+    StringWriter out = new StringWriter();
+    // Each file is larger than the budget, so they must be handled one at a time.
+    FormatPipeline pipeline = pipeline(4, false, out);
+    StringBuilder expected = new StringBuilder();
+    for (int i = 0; i < 50; i++) {
+      Path path = write("T" + i + ".java", "class T" + i + " {   }\n");
+      pipeline.add(path, Files.size(path));
+      expected.append("class T").append(i).append(" {}\n");
+    }
+    assertThat(pipeline.finish()).isTrue();
+    assertThat(out.toString()).isEqualTo(expected.toString());
+  }
+
+  @Test
+  public void formatsInPlace() throws Exception {
+    StringWriter out = new StringWriter();
+    FormatPipeline pipeline = pipeline(64, true, out);
+    Path good = write("A.java", "class A {   }\n");
+    Path bad = write("B.java", "class B {\n");
+    pipeline.add(good, Files.size(good));
+    pipeline.add(bad, Files.size(bad));
+    pipeline.add(testFolder.getRoot().toPath().resolve("Missing.java"), 0);
+    assertThat(pipeline.finish()).isFalse();
+    assertThat(new String(Files.readAllBytes(good), UTF_8)).isEqualTo("class A {}\n");
+    assertThat(new String(Files.readAllBytes(bad), UTF_8)).isEqualTo("class B {\n");
+    assertThat(out.toString()).isEmpty();
+  }
+
+  @Test
+  public void printsUtilization() throws Exception {
+    FormatPipeline pipeline = pipeline(64, true, new StringWriter());
+    for (int i = 0; i < 3; i++) {
+      Path path = write("T" + i + ".java", "class T" + i + " {}\n");
+      pipeline.add(path, Files.size(path));
+    }
+    assertThat(pipeline.finish()).isTrue();
+    StringWriter report = new StringWriter();
+    pipeline.printUtilization(new PrintWriter(report, true));
+    assertThat(report.toString()).containsMatch("files +3\n");
+    assertThat(report.toString()).containsMatch("threads +4\n");
+    assertThat(report.toString()).contains("utilization %");
+    assertThat(report.toString()).contains("tail (ms)");
+  }
+}
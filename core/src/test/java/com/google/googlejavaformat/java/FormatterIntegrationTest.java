@@ -20,6 +20,8 @@ import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 
+import com.google.common.io.CharSink;
+import com.google.common.io.CharSource;
 import com.google.common.io.CharStreams;
 import com.google.common.reflect.ClassPath;
 import com.google.common.reflect.ClassPath.ResourceInfo;
@@ -32,6 +34,8 @@ import org.junit.runners.Parameterized.Parameters;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.io.StringWriter;
+import java.io.Writer;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.Path;
 import java.nio.file.Paths;
@@ -106,6 +110,47 @@ public class FormatterIntegrationTest {
     }
   }
 
+  @Test
+  public void formatStreaming() throws IOException {
+    try {
+      StringWriter output = new StringWriter();
+      new Formatter().formatSource(CharSource.wrap(input), new StringWriterSink(output));
+      assertEquals("bad streamed output for " + name, expected, output.toString());
+    } catch (FormatterException e) {
+      fail(String.format("Formatter crashed on %s: %s", name, e.getMessage()));
+    }
+  }
+
+  @Test
+  public void formatParallelLayout() {
+    try {
+      JavaFormatterOptions options =
+          new JavaFormatterOptions(
+                  JavaFormatterOptions.JavadocFormatter.NONE,
+                  JavaFormatterOptions.Style.GOOGLE,
+                  JavaFormatterOptions.SortImports.NO)
+              .withParallelLayout(1);
+      String output = new Formatter(options).formatSource(input);
+      assertEquals("bad parallel layout output for " + name, expected, output);
+    } catch (FormatterException e) {
+      fail(String.format("Formatter crashed on %s: %s", name, e.getMessage()));
+    }
+  }
+
+  /** A {@link CharSink} that appends to a {@link StringWriter}. */
+  private static final class StringWriterSink extends CharSink {
+    private final StringWriter writer;
+
+    StringWriterSink(StringWriter writer) {
+      this.writer = writer;
+    }
+
+    @Override
+    public Writer openStream() {
+      return writer;
+    }
+  }
+
   @Test
   public void idempotent() {
     try {
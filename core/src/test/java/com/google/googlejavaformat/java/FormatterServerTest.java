@@ -0,0 +1,221 @@
+/*
+ * Copyright 2016 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.google.googlejavaformat.java;
+
+import static com.google.common.truth.Truth.assertThat;
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.PosixFilePermission;
+import java.util.EnumSet;
+
+/**
+ * Tests for {@link FormatterServer} and {@link FormatterClient}.
+ */
+@RunWith(JUnit4.class)
+public class FormatterServerTest {
+
+  @Rule public TemporaryFolder testFolder = new TemporaryFolder();
+
+  private FormatterServer server;
+  private Thread serving;
+
+  @Before
+  public void setUp() throws Exception {
+    server = new FormatterServer(0, 2, testFolder.getRoot().toPath().resolve("server.token"));
+    server.warmUp(100);
+    serving =
+        new Thread(
+            new Runnable() {
+              @Override
+              public void run() {
+                try {
+                  server.serve();
+                } catch (Exception e) {
+                  throw new AssertionError(e);
+                }
+              }
+            });
+    serving.start();
+  }
+
+  @After
+  public void tearDown() throws Exception {
+    server.close();
+    serving.join();
+  }
+
+  private int client(
+      String stdin, ByteArrayOutputStream out, ByteArrayOutputStream err, String... args) {
+    String[] withPort = new String[args.length + 2];
+    withPort[0] = "--port=" + server.port();
+    withPort[1] = "--token-file=" + server.tokenFile();
+    System.arraycopy(args, 0, withPort, 2, args.length);
+    return FormatterClient.run(
+        withPort,
+        new ByteArrayInputStream(stdin.getBytes(UTF_8)),
+        new PrintStream(out, true),
+        new PrintStream(err, true));
+  }
+
+  private String token() throws IOException {
+    return new String(Files.readAllBytes(server.tokenFile()), UTF_8);
+  }
+
+  @Test
+  public void formatsFiles() throws Exception {
+    Path a = testFolder.newFile("A.java").toPath();
+    Files.write(a, "class A {  }\n".getBytes(UTF_8));
+    Path b = testFolder.newFile("B.java").toPath();
+    Files.write(b, "class B {\n".getBytes(UTF_8));
+
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    ByteArrayOutputStream err = new ByteArrayOutputStream();
+    assertThat(client("class S {  }\n", out, err, "--aosp", "-", a.toString())).isEqualTo(0);
+    assertThat(out.toString("UTF-8")).isEqualTo("class S {}\nclass A {}\n");
+
+    assertThat(client("", out, err, "-i", a.toString(), b.toString())).isEqualTo(1);
+    assertThat(new String(Files.readAllBytes(a), UTF_8)).isEqualTo("class A {}\n");
+    assertThat(err.toString("UTF-8")).contains("B.java");
+  }
+
+  @Test
+  public void formatsLineRanges() throws Exception {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    ByteArrayOutputStream err = new ByteArrayOutputStream();
+    String input = "class T {\n  int  x;\n  int  y;\n}\n";
+    assertThat(client(input, out, err, "--lines=3", "-")).isEqualTo(0);
+    assertThat(out.toString("UTF-8")).isEqualTo("class T {\n  int  x;\n  int y;\n}\n");
+  }
+
+  @Test
+  public void returnsReplacements() throws Exception {
+    try (Socket socket = new Socket(InetAddress.getLoopbackAddress(), server.port())) {
+      DataOutputStream request = new DataOutputStream(socket.getOutputStream());
+      request.writeInt(ServerProtocol.MAGIC);
+      ServerProtocol.writeString(request, token());
+      request.writeByte(ServerProtocol.REPLACEMENTS);
+      ServerProtocol.writeString(request, "T.java");
+      request.writeByte(ServerProtocol.STYLE_GOOGLE);
+      request.writeByte(ServerProtocol.SORT_IMPORTS_NO);
+      request.writeInt(0);
+      request.writeInt(0);
+      ServerProtocol.writeString(request, "class T {  }\n");
+      request.flush();
+
+      DataInputStream response = new DataInputStream(socket.getInputStream());
+      assertThat(response.readByte()).isEqualTo(ServerProtocol.OK);
+      assertThat(response.readInt()).isEqualTo(1);
+      assertThat(response.readInt()).isEqualTo(0);
+      assertThat(response.readInt()).isEqualTo(13);
+      assertThat(ServerProtocol.readString(response)).isEqualTo("class T {}\n");
+    }
+  }
+
+  @Test
+  public void rejectsUnknownStyle() throws Exception {
+    try (Socket socket = new Socket(InetAddress.getLoopbackAddress(), server.port())) {
+      DataOutputStream request = new DataOutputStream(socket.getOutputStream());
+      request.writeInt(ServerProtocol.MAGIC);
+      ServerProtocol.writeString(request, token());
+      request.writeByte(ServerProtocol.FORMAT);
+      ServerProtocol.writeString(request, "T.java");
+      request.writeByte(-1);
+      request.writeByte(ServerProtocol.SORT_IMPORTS_NO);
+      request.flush();
+
+      DataInputStream response = new DataInputStream(socket.getInputStream());
+      assertThat(response.readByte()).isEqualTo(ServerProtocol.ERROR);
+      assertThat(ServerProtocol.readString(response)).isEqualTo("unknown style: -1");
+    }
+  }
+
+  @Test
+  public void rejectsHugeStrings() throws Exception {
+    try (Socket socket = new Socket(InetAddress.getLoopbackAddress(), server.port())) {
+      DataOutputStream request = new DataOutputStream(socket.getOutputStream());
+      request.writeInt(ServerProtocol.MAGIC);
+      ServerProtocol.writeString(request, token());
+      request.writeByte(ServerProtocol.REPLACEMENTS);
+      request.writeInt(Integer.MAX_VALUE);
+      request.flush();
+      // The server drops the connection without trying to read, or allocate, the string.
+      assertThat(socket.getInputStream().read()).isEqualTo(-1);
+    }
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    ByteArrayOutputStream err = new ByteArrayOutputStream();
+    assertThat(client("class T {  }\n", out, err, "-")).isEqualTo(0);
+    assertThat(out.toString("UTF-8")).isEqualTo("class T {}\n");
+  }
+
+  @Test
+  public void warmUpSourceFormats() throws Exception {
+    String source = FormatterServer.warmUpSource(2);
+    String formatted = new Formatter().formatSource(source);
+    assertThat(formatted).isNotEqualTo(source);
+    assertThat(new Formatter().formatSource(formatted)).isEqualTo(formatted);
+  }
+
+  @Test
+  public void shutdown() throws Exception {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    ByteArrayOutputStream err = new ByteArrayOutputStream();
+    assertThat(client("", out, err, "--shutdown")).isEqualTo(0);
+    serving.join();
+    assertThat(client("class T {}\n", out, err, "-")).isEqualTo(2);
+    assertThat(Files.exists(server.tokenFile())).isFalse();
+  }
+
+  @Test
+  public void requiresToken() throws Exception {
+    assertThat(server.tokenFile().getFileName().toString()).isEqualTo("server.token");
+    if (Files.getFileStore(server.tokenFile()).supportsFileAttributeView("posix")) {
+      assertThat(Files.getPosixFilePermissions(server.tokenFile()))
+          .isEqualTo(EnumSet.of(PosixFilePermission.OWNER_READ, PosixFilePermission.OWNER_WRITE));
+    }
+    try (Socket socket = new Socket(InetAddress.getLoopbackAddress(), server.port())) {
+      DataOutputStream request = new DataOutputStream(socket.getOutputStream());
+      request.writeInt(ServerProtocol.MAGIC);
+      ServerProtocol.writeString(request, "not the token");
+      request.writeByte(ServerProtocol.SHUTDOWN);
+      request.flush();
+
+      DataInputStream response = new DataInputStream(socket.getInputStream());
+      assertThat(response.readByte()).isEqualTo(ServerProtocol.ERROR);
+      assertThat(ServerProtocol.readString(response)).startsWith("bad token");
+    }
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    ByteArrayOutputStream err = new ByteArrayOutputStream();
+    assertThat(client("class T {  }\n", out, err, "-")).isEqualTo(0);
+    assertThat(out.toString("UTF-8")).isEqualTo("class T {}\n");
+  }
+}
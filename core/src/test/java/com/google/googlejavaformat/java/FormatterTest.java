@@ -18,6 +18,8 @@ import static com.google.common.truth.Truth.assertThat;
 import static com.google.common.truth.Truth.assertWithMessage;
 
 import com.google.common.base.Joiner;
+import com.google.common.io.CharSink;
+import com.google.common.io.CharSource;
 import com.google.common.io.CharStreams;
 
 import org.junit.Rule;
@@ -32,9 +34,12 @@ import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.io.PrintWriter;
 import java.io.StringWriter;
+import java.io.Writer;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
 
 /**
  * Integration test for google-java-format.
@@ -298,4 +303,67 @@ public final class FormatterTest {
     assertThat(new Formatter().formatSource("/*\n * my comment */"))
         .isEqualTo("/*\n * my comment */\n");
   }
+
+  @Test
+  public void testListenerReceivesEachPhase() throws Exception {
+    final List<FormatterListener.Phase> phases = new ArrayList<>();
+    FormatterListener listener =
+        new FormatterListener() {
+          @Override
+          public void phaseCompleted(
+              String fileName, Phase phase, long elapsedNanos, long allocatedBytes) {
+            assertThat(fileName).isEqualTo("A.java");
+            assertThat(elapsedNanos).isAtLeast(0L);
+            phases.add(phase);
+          }
+        };
+    JavaFormatterOptions options =
+        new JavaFormatterOptions(
+                JavaFormatterOptions.JavadocFormatter.NONE,
+                JavaFormatterOptions.Style.GOOGLE,
+                JavaFormatterOptions.SortImports.NO)
+            .withListener(listener);
+    String output = new Formatter("A.java", options).formatSource("class A{}");
+    assertThat(output).isEqualTo("class A {}\n");
+    assertThat(phases)
+        .containsExactly(
+            FormatterListener.Phase.LEX,
+            FormatterListener.Phase.REORDER_MODIFIERS,
+            FormatterListener.Phase.PARSE,
+            FormatterListener.Phase.VISIT,
+            FormatterListener.Phase.BUILD_DOC,
+            FormatterListener.Phase.LAYOUT,
+            FormatterListener.Phase.WRITE,
+            FormatterListener.Phase.REPLACEMENTS)
+        .inOrder();
+  }
+
+  @Test
+  public void streamingMatchesReplacements() throws Exception {
+    String[] inputs = {
+      "",
+      "\n",
+      "\n\n\nclass T {}\n",
+      "// c\n\n\nclass T {}   \n\n\n",
+      "  /* x */  class T {} // y",
+      "// only a comment\n",
+      "class T {}\r\n",
+      "class T {}\n\n// trailing\n\n",
+    };
+    for (String input : inputs) {
+      final StringWriter writer = new StringWriter();
+      new Formatter()
+          .formatSource(
+              CharSource.wrap(input),
+              new CharSink() {
+                @Override
+                public Writer openStream() {
+                  return writer;
+                }
+              });
+      assertWithMessage(input)
+          .that(writer.toString())
+          .isEqualTo(new Formatter().formatSource(input));
+    }
+  }
 }
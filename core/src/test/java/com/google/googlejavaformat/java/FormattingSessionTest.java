@@ -0,0 +1,165 @@
+/*
+ * Copyright 2016 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.google.googlejavaformat.java;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import com.google.common.base.Joiner;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Range;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/**
+ * Tests for {@link FormattingSession}.
+ */
+@RunWith(JUnit4.class)
+public class FormattingSessionTest {
+
+  private static final String FORMATTED =
+      Joiner.on('\n')
+          .join(
+              "package p;",
+              "",
+              "import java.util.List;",
+              "",
+              "class Foo {",
+              "  int x;",
+              "",
+              "  /** Javadoc. */",
+              "  Foo() {",
+              "    x = 1;",
+              "  }",
+              "",
+              "  // A comment.",
+              "  void f(List<String> list) {",
+              "    for (String s : list) {",
+              "      g(s);",
+              "    }",
+              "  }",
+              "",
+              "  void g(String s) {}",
+              "}",
+              "",
+              "enum E {",
+              "  A,",
+              "  B;",
+              "",
+              "  int h() {",
+              "    return 0;",
+              "  }",
+              "}",
+              "");
+
+  private static FormattingSession newSession(String text) {
+    return new FormattingSession(
+        Formatter.STDIN_FILENAME,
+        new JavaFormatterOptions(
+            JavaFormatterOptions.JavadocFormatter.NONE,
+            JavaFormatterOptions.Style.GOOGLE,
+            JavaFormatterOptions.SortImports.NO),
+        text);
+  }
+
+  private static ImmutableList<Replacement> formatAll(FormattingSession session)
+      throws FormatterException {
+    return session.format(ImmutableList.of(Range.closedOpen(0, session.getText().length())));
+  }
+
+  /** Edits {@code before} to {@code after}, at its first occurrence. */
+  private static void edit(FormattingSession session, String before, String after) {
+    int offset = session.getText().indexOf(before);
+    assertThat(offset).isAtLeast(0);
+    session.edit(offset, before.length(), after);
+  }
+
+  @Test
+  public void formatsEditedDeclarationOnly() throws Exception {
+    FormattingSession session = newSession(FORMATTED);
+    formatAll(session);
+    assertThat(session.getText()).isEqualTo(FORMATTED);
+    assertThat(session.fullFormatCount()).isEqualTo(1);
+
+    edit(session, "      g(s);", "      g(  s  ) ;");
+    edit(session, "    return 0;", "  return  0;");
+    String edited = session.getText();
+    ImmutableList<Replacement> replacements = formatAll(session);
+    assertThat(session.fullFormatCount()).isEqualTo(1);
+    assertThat(replacements).hasSize(2);
+    assertThat(JavaOutput.applyReplacements(edited, replacements)).isEqualTo(FORMATTED);
+    assertThat(session.getText()).isEqualTo(FORMATTED);
+
+    // The edited declarations are known to be formatted now, and so is everything else.
+    assertThat(formatAll(session)).isEmpty();
+    assertThat(session.fullFormatCount()).isEqualTo(1);
+  }
+
+  @Test
+  public void formatsRangeInsideDeclaration() throws Exception {
+    FormattingSession session = newSession(FORMATTED);
+    edit(session, "  void g(String s) {}", "  void g(String s) {   }");
+    edit(session, "    x = 1;", "    x =  1;");
+    int offset = session.getText().indexOf("x =  1;");
+    session.format(ImmutableList.of(Range.closedOpen(offset, offset + 1)));
+    assertThat(session.fullFormatCount()).isEqualTo(0);
+    assertThat(session.getText()).contains("    x = 1;");
+    assertThat(session.getText()).contains("  void g(String s) {   }");
+  }
+
+  @Test
+  public void editBetweenDeclarationsFormatsEverything() throws Exception {
+    FormattingSession session = newSession(FORMATTED);
+    formatAll(session);
+    edit(session, "  void g(String s) {}", "  void g(String s) {}\n  int  y;\n");
+    formatAll(session);
+    assertThat(session.fullFormatCount()).isEqualTo(2);
+    assertThat(session.getText()).isEqualTo(new Formatter().formatSource(session.getText()));
+    assertThat(session.getText()).contains("\n  int y;\n}");
+  }
+
+  @Test
+  public void editThatSplitsDeclarationFormatsEverything() throws Exception {
+    FormattingSession session = newSession(FORMATTED);
+    formatAll(session);
+    edit(session, "      g(s);\n    }\n", "      g(s);\n    }\n  }\n  void  k() {\n");
+    formatAll(session);
+    assertThat(session.fullFormatCount()).isEqualTo(2);
+    assertThat(session.getText()).contains("\n  void k() {}\n");
+  }
+
+  @Test
+  public void syntaxError() throws Exception {
+    FormattingSession session = newSession(FORMATTED);
+    formatAll(session);
+    edit(session, "    x = 1;", "    x = ;");
+    try {
+      formatAll(session);
+      throw new AssertionError("Expected FormatterException to be thrown");
+    } catch (FormatterException expected) {
+    }
+  }
+
+  @Test
+  public void update() throws Exception {
+    FormattingSession session = newSession(FORMATTED);
+    formatAll(session);
+    session.update(FORMATTED.replace("g(s);", "g( s );"));
+    formatAll(session);
+    assertThat(session.fullFormatCount()).isEqualTo(1);
+    assertThat(session.getText()).isEqualTo(FORMATTED);
+  }
+}
@@ -391,4 +391,25 @@ public class ImportOrdererTest {
       assertThat(e.getMessage()).isEqualTo(reordered.substring(2, reordered.length() - 1));
     }
   }
+
+  @Test
+  public void reorderSharedJavaInput() throws FormatterException {
+    try {
+      JavaInput javaInput = new JavaInput("FakeClass.java", input);
+      JavaInput output = ImportOrderer.reorderImports(javaInput);
+      assertWithMessage("Expected exception").that(reordered).doesNotMatch("^!!");
+      assertWithMessage(input).that(output.getText()).isEqualTo(reordered);
+      if (reordered.equals(input)) {
+        assertWithMessage("unchanged input should not be lexed again")
+            .that(output)
+            .isSameAs(javaInput);
+      }
+    } catch (FormatterException e) {
+      if (!reordered.startsWith("!!")) {
+        throw e;
+      }
+      assertThat(reordered).endsWith("\n");
+      assertThat(e.getMessage()).isEqualTo(reordered.substring(2, reordered.length() - 1));
+    }
+  }
 }
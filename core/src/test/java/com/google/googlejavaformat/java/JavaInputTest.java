@@ -0,0 +1,57 @@
+/*
+ * Copyright 2016 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.google.googlejavaformat.java;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import com.google.googlejavaformat.java.JavaInput.Tok;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/** {@link JavaInput}Test */
+@RunWith(JUnit4.class)
+public final class JavaInputTest {
+
+  @Test
+  public void toksAreViewsOfTheInput() throws Exception {
+    String input = "class T {\n  String s = \"\\u0041\"; /* a\n b */ char c = '\\u0042';\n}\n";
+    JavaInput javaInput = new JavaInput("T.java", input);
+    StringBuilder original = new StringBuilder();
+    List<String> escaped = new ArrayList<>();
+    for (Tok tok : javaInput.getToks()) {
+      assertThat(tok.length()).isEqualTo(tok.getOriginalText().length());
+      assertThat(input.substring(tok.getPosition(), tok.getPosition() + tok.length()))
+          .isEqualTo(tok.getOriginalText());
+      original.append(tok.getOriginalText());
+      if (!tok.getText().equals(tok.getOriginalText())) {
+        escaped.add(tok.getOriginalText() + " -> " + tok.getText());
+      }
+    }
+    assertThat(original.toString()).isEqualTo(input);
+    assertThat(escaped).containsExactly("\"\\u0041\" -> \"A\"", "'\\u0042' -> 'B'").inOrder();
+  }
+
+  @Test
+  public void newlinesCounted() throws Exception {
+    JavaInput javaInput = new JavaInput("T.java", "class T {\n  /* a\n b */\n  int x;\n}\n");
+    assertThat(javaInput.getLineCount()).isEqualTo(6);
+    assertThat(javaInput.getLine(3)).isEqualTo("  int x;");
+  }
+}
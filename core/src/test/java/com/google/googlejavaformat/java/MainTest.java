@@ -26,6 +26,7 @@ import org.junit.rules.TemporaryFolder;
 import org.junit.runner.RunWith;
 import org.junit.runners.JUnit4;
 
+import java.io.ByteArrayInputStream;
 import java.io.PrintWriter;
 import java.io.StringWriter;
 import java.lang.ProcessBuilder.Redirect;
@@ -121,4 +122,235 @@ public class MainTest {
     assertThat(err).contains("Usage: google-java-format");
     assertThat(process.exitValue()).isEqualTo(0);
   }
+
+  @Test
+  public void profile() throws Exception {
+    Path path = testFolder.newFile("Test.java").toPath();
+    Files.write(path, "class Test {}\n".getBytes(UTF_8));
+    StringWriter out = new StringWriter();
+    StringWriter err = new StringWriter();
+    Main main = new Main(new PrintWriter(out, true), new PrintWriter(err, true), System.in);
+    assertThat(main.format("--profile", path.toAbsolutePath().toString())).isEqualTo(0);
+    assertThat(out.toString()).isEqualTo("class Test {}\n");
+    assertThat(err.toString()).contains("parse");
+    assertThat(err.toString()).contains("layout");
+    assertThat(err.toString()).contains("total");
+  }
+
+  @Test
+  public void formatDirectory() throws Exception {
+    Path root = testFolder.newFolder("src").toPath();
+    Path a = Files.createDirectories(root.resolve("a"));
+    Path generated = Files.createDirectories(a.resolve("generated"));
+    Files.write(root.resolve("Z.java"), "class Z {  }\n".getBytes(UTF_8));
+    Files.write(a.resolve("A.java"), "class A {  }\n".getBytes(UTF_8));
+    Files.write(a.resolve("ATest.java"), "class ATest {  }\n".getBytes(UTF_8));
+    Files.write(a.resolve("notes.txt"), "class N {  }\n".getBytes(UTF_8));
+    Files.write(generated.resolve("G.java"), "class G {  }\n".getBytes(UTF_8));
+
+    StringWriter out = new StringWriter();
+    StringWriter err = new StringWriter();
+    Main main = new Main(new PrintWriter(out, true), new PrintWriter(err, true), System.in);
+    assertThat(main.format("--exclude=generated", "--exclude=*Test.java", root.toString()))
+        .isEqualTo(0);
+    assertThat(out.toString()).isEqualTo("class Z {}\nclass A {}\n");
+    assertThat(err.toString()).isEmpty();
+
+    assertThat(main.format("-i", "--include=a/**", root.toString())).isEqualTo(0);
+    assertThat(new String(Files.readAllBytes(a.resolve("A.java")), UTF_8))
+        .isEqualTo("class A {}\n");
+    assertThat(new String(Files.readAllBytes(a.resolve("ATest.java")), UTF_8))
+        .isEqualTo("class ATest {}\n");
+    assertThat(new String(Files.readAllBytes(generated.resolve("G.java")), UTF_8))
+        .isEqualTo("class G {}\n");
+    assertThat(new String(Files.readAllBytes(root.resolve("Z.java")), UTF_8))
+        .isEqualTo("class Z {  }\n");
+    assertThat(new String(Files.readAllBytes(a.resolve("notes.txt")), UTF_8))
+        .isEqualTo("class N {  }\n");
+  }
+
+  @Test
+  public void cantSelectLinesInDirectory() throws Exception {
+    Path root = testFolder.newFolder("src").toPath();
+    StringWriter out = new StringWriter();
+    StringWriter err = new StringWriter();
+    Main main = new Main(new PrintWriter(out, true), new PrintWriter(err, true), System.in);
+    try {
+      main.format("--lines=1:2", root.toString());
+      throw new AssertionError("Expected UsageException to be thrown");
+    } catch (UsageException expected) {
+    }
+  }
+
+  @Test
+  public void dryRun() throws Exception {
+    Path formatted = testFolder.newFile("A.java").toPath();
+    Files.write(formatted, "class A {}\n".getBytes(UTF_8));
+    Path unformatted = testFolder.newFile("B.java").toPath();
+    Files.write(unformatted, "class B {  }\n".getBytes(UTF_8));
+
+    StringWriter out = new StringWriter();
+    StringWriter err = new StringWriter();
+    Main main = new Main(new PrintWriter(out, true), new PrintWriter(err, true), System.in);
+    assertThat(main.format("-i", "--dry-run", formatted.toString(), unformatted.toString()))
+        .isEqualTo(0);
+    assertThat(out.toString()).isEqualTo(unformatted + "\n");
+    assertThat(new String(Files.readAllBytes(unformatted), UTF_8)).isEqualTo("class B {  }\n");
+
+    out.getBuffer().setLength(0);
+    assertThat(main.format("-n", "--set-exit-if-changed", formatted.toString())).isEqualTo(0);
+    assertThat(main.format("-n", "--set-exit-if-changed", unformatted.toString())).isEqualTo(1);
+    assertThat(out.toString()).isEqualTo(unformatted + "\n");
+    assertThat(err.toString()).isEmpty();
+  }
+
+  @Test
+  public void failFast() throws Exception {
+    Path root = testFolder.newFolder("src").toPath();
+    for (int i = 0; i < 20; i++) {
+      Files.write(root.resolve("T" + i + ".java"), ("class T" + i + " {  }\n").getBytes(UTF_8));
+    }
+    StringWriter out = new StringWriter();
+    StringWriter err = new StringWriter();
+    Main main = new Main(new PrintWriter(out, true), new PrintWriter(err, true), System.in);
+    int exitCode =
+        main.format(
+            "--dry-run", "--set-exit-if-changed", "--fail-fast", "--threads=1", root.toString());
+    assertThat(exitCode).isEqualTo(1);
+    assertThat(out.toString().split("\n")).hasLength(1);
+    assertThat(err.toString()).isEmpty();
+  }
+
+  @Test
+  public void duplicateFilesFormattedOnce() throws Exception {
+    Path a = testFolder.newFile("A.java").toPath();
+    Files.write(a, "class A {  }\n".getBytes(UTF_8));
+    Path b = testFolder.newFolder("b").toPath().resolve("B.java");
+    Files.write(b, "class B {  }\n".getBytes(UTF_8));
+    StringWriter out = new StringWriter();
+    StringWriter err = new StringWriter();
+    Main main = new Main(new PrintWriter(out, true), new PrintWriter(err, true), System.in);
+    assertThat(
+            main.format(
+                a.toString(),
+                b.toString(),
+                a.toString(),
+                a.getParent().resolve(".").resolve("A.java").toString(),
+                b.getParent().toString()))
+        .isEqualTo(0);
+    assertThat(err.toString()).isEmpty();
+    assertThat(out.toString()).isEqualTo("class A {}\nclass B {}\n");
+  }
+
+  @Test
+  public void overlappingDirectoriesFormattedOnce() throws Exception {
+    Path root = testFolder.newFolder("src").toPath();
+    Path sub = Files.createDirectory(root.resolve("sub"));
+    Files.write(root.resolve("A.java"), "class A {  }\n".getBytes(UTF_8));
+    for (int i = 0; i < 20; i++) {
+      Files.write(sub.resolve("T" + i + ".java"), ("class T" + i + " {  }\n").getBytes(UTF_8));
+    }
+
+    StringWriter out = new StringWriter();
+    StringWriter err = new StringWriter();
+    Main main = new Main(new PrintWriter(out, true), new PrintWriter(err, true), System.in);
+    assertThat(main.format("--dry-run", root.toString(), sub.toString(), root.toString()))
+        .isEqualTo(0);
+    assertThat(err.toString()).isEmpty();
+    assertThat(out.toString().split("\n")).hasLength(21);
+
+    out = new StringWriter();
+    main = new Main(new PrintWriter(out, true), new PrintWriter(err, true), System.in);
+    assertThat(main.format("-i", "--threads=4", root.toString(), sub.toString())).isEqualTo(0);
+    assertThat(err.toString()).isEmpty();
+    assertThat(new String(Files.readAllBytes(root.resolve("A.java")), UTF_8))
+        .isEqualTo("class A {}\n");
+    for (int i = 0; i < 20; i++) {
+      assertThat(new String(Files.readAllBytes(sub.resolve("T" + i + ".java")), UTF_8))
+          .isEqualTo("class T" + i + " {}\n");
+    }
+  }
+
+  @Test
+  public void failFastInPlace() throws Exception {
+    Path root = testFolder.newFolder("src").toPath();
+    for (int i = 0; i < 20; i++) {
+      Files.write(root.resolve("T" + i + ".java"), ("class T" + i + " {  }\n").getBytes(UTF_8));
+    }
+    StringWriter out = new StringWriter();
+    StringWriter err = new StringWriter();
+    Main main = new Main(new PrintWriter(out, true), new PrintWriter(err, true), System.in);
+    int exitCode =
+        main.format("-i", "--set-exit-if-changed", "--fail-fast", "--threads=2", root.toString());
+    assertThat(exitCode).isEqualTo(1);
+    assertThat(err.toString()).isEmpty();
+    // Every file is either written out in full, or left as it was.
+    int written = 0;
+    for (int i = 0; i < 20; i++) {
+      String text = new String(Files.readAllBytes(root.resolve("T" + i + ".java")), UTF_8);
+      if (text.equals("class T" + i + " {}\n")) {
+        written++;
+      } else {
+        assertThat(text).isEqualTo("class T" + i + " {  }\n");
+      }
+    }
+    assertThat(written).isAtLeast(1);
+    assertThat(written).isLessThan(20);
+  }
+
+  @Test
+  public void failFastRequiresCheck() throws Exception {
+    Main main =
+        new Main(new PrintWriter(System.out, true), new PrintWriter(System.err, true), System.in);
+    try {
+      main.format("--fail-fast", "A.java");
+      throw new AssertionError("Expected UsageException to be thrown");
+    } catch (UsageException expected) {
+    }
+  }
+
+  @Test
+  public void batch() throws Exception {
+    Path a = testFolder.newFile("A.java").toPath();
+    Files.write(a, "class A {\n  int  x;\n  int  y;\n}\n".getBytes(UTF_8));
+    Path b = testFolder.newFile("B.java").toPath();
+    Files.write(b, "class B {  }\n".getBytes(UTF_8));
+    String input =
+        "{\"file\": "
+            + Json.quote(a.toString())
+            + ", \"lines\": [\"3\"]}\n"
+            + "not json\n"
+            + "{\"file\": "
+            + Json.quote(b.toString())
+            + ", \"offsets\": [[0, 12]]}\n";
+
+    StringWriter out = new StringWriter();
+    StringWriter err = new StringWriter();
+    Main main =
+        new Main(
+            new PrintWriter(out, true),
+            new PrintWriter(err, true),
+            new ByteArrayInputStream(input.getBytes(UTF_8)));
+    assertThat(main.format("--batch")).isEqualTo(1);
+    assertThat(out.toString())
+        .isEqualTo(
+            batchOutput(a, "class A {\n  int  x;\n  int y;\n}\n")
+                + batchOutput(b, "class B {}\n"));
+    assertThat(err.toString()).startsWith("<stdin>:2: ");
+  }
+
+  private static String batchOutput(Path file, String output) {
+    return "{\"file\":" + Json.quote(file.toString()) + ",\"output\":" + Json.quote(output) + "}\n";
+  }
+
+  @Test
+  public void batchTakesNoFiles() throws Exception {
+    Main main =
+        new Main(new PrintWriter(System.out, true), new PrintWriter(System.err, true), System.in);
+    try {
+      main.format("--batch", "A.java");
+      throw new AssertionError("Expected UsageException to be thrown");
+    } catch (UsageException expected) {
+    }
+  }
 }
@@ -103,4 +103,24 @@ public class ModifierOrdererTest {
         ModifierOrderer.reorderModifiers("", input, Arrays.asList(Range.closedOpen(start, end)));
     assertThat(output).contains("public\n  static int a;");
   }
+
+  @Test
+  public void sharedJavaInput() throws FormatterException {
+    String input = "class Test {\n  public static int a;\n  static public int b;\n}\n";
+    JavaInput javaInput = new JavaInput("", input);
+    Range<Integer> first = Range.closedOpen(0, input.indexOf("int a;"));
+    assertThat(ModifierOrderer.reorderModifiers(javaInput, Arrays.asList(first)))
+        .isSameAs(javaInput);
+    Range<Integer> all = Range.closedOpen(0, input.length());
+    JavaInput reordered = ModifierOrderer.reorderModifiers(javaInput, Arrays.asList(all));
+    assertThat(reordered.getText()).contains("public static int b;");
+  }
+
+  @Test
+  public void orderedTextIsNotLexed() throws FormatterException {
+    String input = "class Test {\n  public static /* static public */ int a;\n}\n";
+    assertThat(ModifierOrderer.hasUnorderedModifiers(input)).isFalse();
+    assertThat(ModifierOrderer.reorderModifiers("", input)).isSameAs(input);
+    assertThat(ModifierOrderer.hasUnorderedModifiers("static /* */ public int a;")).isTrue();
+  }
 }
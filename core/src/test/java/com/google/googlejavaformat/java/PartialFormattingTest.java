@@ -17,6 +17,7 @@ package com.google.googlejavaformat.java;
 import static com.google.common.truth.Truth.assertThat;
 import static java.nio.charset.StandardCharsets.UTF_8;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
 
 import com.google.common.base.Joiner;
 import com.google.common.collect.ImmutableList;
@@ -1212,4 +1213,132 @@ public final class PartialFormattingTest {
     assertThat(main.format(args)).isEqualTo(0);
     assertThat(out.toString()).isEqualTo(Joiner.on('\n').join(expected));
   }
+
+  @Test
+  public void formatsDeclarationsOnTheirOwn() throws Exception {
+    String input =
+        Joiner.on('\n')
+            .join(
+                "class T {",
+                "  int  a ;",
+                "",
+                "  void f() {",
+                "    g( 1 );",
+                "    g( 2 );",
+                "  }",
+                "}",
+                "enum E {",
+                "  A;",
+                "  int  b ;",
+                "}",
+                "");
+    String expected =
+        Joiner.on('\n')
+            .join(
+                "class T {",
+                "  int  a ;",
+                "",
+                "  void f() {",
+                "    g(1);",
+                "    g( 2 );",
+                "  }",
+                "}",
+                "enum E {",
+                "  A;",
+                "  int b;",
+                "}",
+                "");
+    int first = input.indexOf("g( 1 )");
+    int second = input.indexOf("int  b");
+    ImmutableList<Replacement> replacements =
+        new Formatter()
+            .getFormatReplacements(
+                input,
+                ImmutableList.of(
+                    Range.closedOpen(first, first + 1), Range.closedOpen(second, second + 1)));
+    assertThat(replacements).hasSize(2);
+    assertThat(JavaOutput.applyReplacements(input, replacements)).isEqualTo(expected);
+  }
+
+  @Test
+  public void joinsNeighbouringDeclarations() throws Exception {
+    String input =
+        Joiner.on('\n')
+            .join(
+                "class T {",
+                "  class A {",
+                "    void f() { }",
+                "  }",
+                "  class  B {",
+                "    void g() {}",
+                "  }",
+                "}",
+                "");
+    String expected =
+        Joiner.on('\n')
+            .join(
+                "class T {",
+                "  class A {",
+                "    void f() {}",
+                "  }",
+                "",
+                "  class B {",
+                "    void g() {}",
+                "  }",
+                "}",
+                "");
+    int first = input.indexOf("class A");
+    int second = input.indexOf("class  B");
+    ImmutableList<Replacement> replacements =
+        new Formatter()
+            .getFormatReplacements(
+                input,
+                ImmutableList.of(
+                    Range.closedOpen(first, input.indexOf("  class  B") - 1),
+                    Range.closedOpen(second, second + 1)));
+    assertThat(JavaOutput.applyReplacements(input, replacements)).isEqualTo(expected);
+  }
+
+  @Test
+  public void formatsManyRanges() throws Exception {
+    StringBuilder input = new StringBuilder("class T {\n");
+    StringBuilder expected = new StringBuilder("class T {\n");
+    List<Range<Integer>> ranges = new ArrayList<>();
+    for (int i = 0; i < 500; i++) {
+      if (i % 2 == 0) {
+        ranges.add(Range.closedOpen(input.length(), input.length() + 1));
+        expected.append("  int f").append(i).append(";\n");
+      } else {
+        expected.append("  int  f").append(i).append(" ;\n");
+      }
+      input.append("  int  f").append(i).append(" ;\n");
+    }
+    input.append("}\n");
+    expected.append("}\n");
+    ImmutableList<Replacement> replacements =
+        new Formatter().getFormatReplacements(input.toString(), ranges);
+    assertThat(replacements).hasSize(250);
+    assertThat(JavaOutput.applyReplacements(input.toString(), replacements))
+        .isEqualTo(expected.toString());
+  }
+
+  @Test
+  public void applyReplacements() throws Exception {
+    String input = "abcdefgh";
+    assertThat(
+            JavaOutput.applyReplacements(
+                input,
+                ImmutableList.of(
+                    Replacement.create(6, 8, "GH"),
+                    Replacement.create(0, 1, ""),
+                    Replacement.create(2, 2, "2"),
+                    Replacement.create(2, 4, "CD"))))
+        .isEqualTo("b2CDefGH");
+    try {
+      JavaOutput.applyReplacements(
+          input, ImmutableList.of(Replacement.create(0, 3, "x"), Replacement.create(2, 4, "y")));
+      fail("Expected IllegalArgumentException to be thrown");
+    } catch (IllegalArgumentException expected) {
+    }
+  }
 }
@@ -19,8 +19,9 @@ package com.google.googlejavaformat.intellij;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.Ordering;
 import com.google.common.collect.Range;
-import com.google.googlejavaformat.java.Formatter;
 import com.google.googlejavaformat.java.FormatterException;
+import com.google.googlejavaformat.java.FormattingSession;
+import com.google.googlejavaformat.java.JavaFormatterOptions;
 import com.google.googlejavaformat.java.Replacement;
 import com.intellij.openapi.application.ApplicationManager;
 import com.intellij.openapi.command.WriteCommandAction;
@@ -35,8 +36,11 @@ import com.intellij.util.IncorrectOperationException;
 import org.jetbrains.annotations.NotNull;
 
 import java.util.Collection;
+import java.util.Collections;
 import java.util.Comparator;
 import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
 
 /**
  * A {@link CodeStyleManager} implementation which formats .java files with google-java-format.
@@ -45,7 +49,18 @@ import java.util.List;
  * @author bcsf@google.com (Brian Chang)
  */
 public class GoogleJavaFormatCodeStyleManager extends CodeStyleManagerDecorator {
-  private final Formatter formatter = new Formatter();
+  private final JavaFormatterOptions options =
+      new JavaFormatterOptions(
+          JavaFormatterOptions.JavadocFormatter.NONE,
+          JavaFormatterOptions.Style.GOOGLE,
+          JavaFormatterOptions.SortImports.NO);
+
+  /**
+   * A formatting session for each open document, so that formatting again after a small edit only
+   * redoes the declarations that changed.
+   */
+  private final Map<Document, FormattingSession> sessions =
+      Collections.synchronizedMap(new WeakHashMap<Document, FormattingSession>());
 
   public GoogleJavaFormatCodeStyleManager(@NotNull CodeStyleManager original) {
     super(original);
@@ -80,8 +95,7 @@ public class GoogleJavaFormatCodeStyleManager extends CodeStyleManagerDecorator
     Document document = PsiDocumentManager.getInstance(getProject()).getDocument(file);
     if (document != null) {
       try {
-        ImmutableList<Replacement> replacements =
-            formatter.getFormatReplacements(document.getText(), ranges);
+        ImmutableList<Replacement> replacements = session(file, document).format(ranges);
         List<Replacement> reverseSortedReplacements =
             Ordering.from(REPLACEMENT_COMPARATOR).reverse().sortedCopy(replacements);
         performReplacements(document, reverseSortedReplacements);
@@ -91,6 +105,18 @@ public class GoogleJavaFormatCodeStyleManager extends CodeStyleManagerDecorator
     }
   }
 
+  private FormattingSession session(PsiFile file, Document document) {
+    String text = document.getText();
+    FormattingSession session = sessions.get(document);
+    if (session == null) {
+      session = new FormattingSession(file.getName(), options, text);
+      sessions.put(document, session);
+    } else {
+      session.update(text);
+    }
+    return session;
+  }
+
   private void performReplacements(
       final Document document,
       final List<Replacement> reverseSortedReplacements) {
@@ -24,6 +24,7 @@ Example usage for git/svn users:
 
 import argparse
 import difflib
+import json
 import re
 import string
 import subprocess
@@ -80,28 +81,36 @@ def main():
       if line_count == 0:
         continue
       end_line = start_line + line_count - 1;
-      lines_by_file.setdefault(filename, []).extend(
-          ['-lines', str(start_line) + ':' + str(end_line)])
+      lines_by_file.setdefault(filename, []).append(
+          str(start_line) + ':' + str(end_line))
 
-  # Reformat files containing changes in place.
-  for filename, lines in lines_by_file.iteritems():
-    if args.i and args.verbose:
+  if not lines_by_file:
+    return
+
+  # Reformat all files containing changes in one process, each with its own
+  # line ranges.
+  if args.i and args.verbose:
+    for filename in lines_by_file:
       print 'Formatting', filename
-    command = [binary]
-    if args.i:
-      command.append('-i')
-    command.extend(lines)
-    command.append(filename)
-    p = subprocess.Popen(command, stdout=subprocess.PIPE,
-                         stderr=None, stdin=subprocess.PIPE)
-    stdout, stderr = p.communicate()
-    if p.returncode != 0:
-      sys.exit(p.returncode);
-
-    if not args.i:
+  command = [binary, '--batch']
+  if args.i:
+    command.append('-i')
+  requests = ''.join(json.dumps({'file': filename, 'lines': lines}) + '\n'
+                     for filename, lines in lines_by_file.iteritems())
+  p = subprocess.Popen(command, stdout=subprocess.PIPE,
+                       stderr=None, stdin=subprocess.PIPE)
+  stdout, stderr = p.communicate(requests)
+
+  # Files that failed to format are reported on stderr and left out of stdout;
+  # print the results for the others before passing the failure on.
+  if not args.i:
+    for result in stdout.splitlines():
+      result = json.loads(result)
+      filename = result['file']
       with open(filename) as f:
         code = f.readlines()
-      formatted_code = StringIO.StringIO(stdout).readlines()
+      formatted_code = StringIO.StringIO(
+          result['output'].encode('utf-8')).readlines()
       diff = difflib.unified_diff(code, formatted_code,
                                   filename, filename,
                                   '(before formatting)', '(after formatting)')
@@ -109,5 +118,8 @@ def main():
       if len(diff_string) > 0:
         sys.stdout.write(diff_string)
 
+  if p.returncode != 0:
+    sys.exit(p.returncode)
+
 if __name__ == '__main__':
   main()